@@ -0,0 +1,23 @@
+package cc.apoc.lloverlay;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary results of the benchmarks, reported per second next to the
+ * throughput of the benchmark method.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class LightLevelOverlayCounters {
+    // overlays generated or passed to the renderer
+    public long overlays;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        overlays = 0;
+    }
+}
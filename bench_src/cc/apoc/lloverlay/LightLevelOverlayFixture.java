@@ -0,0 +1,298 @@
+package cc.apoc.lloverlay;
+
+import java.util.Random;
+
+/**
+ * Synthetic chunk for the benchmarks, in the raw section arrays the
+ * generation thread passes to the scanner.
+ *
+ * Scenarios:
+ *   flat    stone, dirt and grass up to y 63, a few torches
+ *   caves   flat with tunnels carved into the stone, torches in them
+ *   forest  flat with trees, logs and leaves
+ *   base    flat with a building of three floors, slabs, carpets and glass
+ *
+ * The same scenario always gets the same blocks.
+ */
+class LightLevelOverlayFixture {
+    public static final int PLAYER_Y = 80;
+    public static final int DRAW_DEPTH = 64;
+
+    // vanilla block ids
+    private static final int STONE = 1;
+    private static final int GRASS = 2;
+    private static final int DIRT = 3;
+    private static final int PLANKS = 5;
+    private static final int WATER = 9;
+    private static final int LOG = 17;
+    private static final int LEAVES = 18;
+    private static final int GLASS = 20;
+    private static final int STONE_SLAB = 44;
+    private static final int TORCH = 50;
+    private static final int CARPET = 171;
+
+    private static final int SURFACE_Y = 63;
+
+    // arrays by section, null for missing sections
+    public final byte[][] blocks = new byte[16][];
+    public final byte[][] data = new byte[16][];
+    public final byte[][] light = new byte[16][];
+    public final int[] heightMap = new int[256];
+
+    private int[] torches = new int[64 * 3];
+    private int torchCount = 0;
+
+    private Random random;
+
+    public LightLevelOverlayFixture(String scenario) {
+        random = new Random(scenario.hashCode());
+
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                for (int y = 0; y < SURFACE_Y - 3; y++) {
+                    set(x, y, z, STONE, 0);
+                }
+                set(x, SURFACE_Y - 3, z, DIRT, 0);
+                set(x, SURFACE_Y - 2, z, DIRT, 0);
+                set(x, SURFACE_Y - 1, z, DIRT, 0);
+                set(x, SURFACE_Y, z, GRASS, 0);
+            }
+        }
+
+        if (scenario.equals("flat")) {
+            for (int i = 0; i < 3; i++) {
+                addTorch(random.nextInt(16), SURFACE_Y + 1, random.nextInt(16));
+            }
+        }
+        else if (scenario.equals("caves")) {
+            createCaves();
+        }
+        else if (scenario.equals("forest")) {
+            for (int i = 0; i < 5; i++) {
+                createTree(2 + random.nextInt(12), 2 + random.nextInt(12));
+            }
+        }
+        else if (scenario.equals("base")) {
+            createBase();
+        }
+        else {
+            throw new IllegalArgumentException("unknown scenario: " + scenario);
+        }
+
+        updateHeightMap();
+        updateLight();
+    }
+
+    /**
+     * Surface table of the default overlay blocks, as the game builds it.
+     */
+    public static short[] createSurfaceTable() {
+        return new LightLevelOverlaySurfaceTable(LightLevelOverlayConfig.DEFAULT_OVERLAY_BLOCKS).getTable();
+    }
+
+    /**
+     * Generates the overlays of the chunk like the generation thread does.
+     *
+     * @param reuse reuse the sections of the last pass with the same fingerprint
+     */
+    public void generate(LightLevelOverlayScanner scanner, LightLevelOverlayChunk overlays, boolean reuse) {
+        int topSection = 15;
+        while (topSection > 0 && blocks[topSection] == null) {
+            topSection--;
+        }
+        int maxY = Math.min(topSection * 16 + 15, PLAYER_Y + 3);
+        int minY = Math.max(0, PLAYER_Y + 3 - DRAW_DEPTH + 1);
+        scanner.scanChunk(overlays, heightMap, minY, maxY, blocks, null, data, light, reuse);
+    }
+
+    /**
+     * Checks that the fingerprint notices a change of the top bits of two
+     * words hashed by the same lane: light level 8 added at x 15 of two
+     * rows of section 3. Throws if the section is reused anyway.
+     */
+    public void checkFingerprint(LightLevelOverlayScanner scanner) {
+        LightLevelOverlayChunk overlays = new LightLevelOverlayChunk(0, 0);
+        generate(scanner, overlays, false);
+        byte[] section = light[3];
+        section[7] ^= 0x80;
+        section[23] ^= 0x80;
+        try {
+            generate(scanner, overlays, true);
+            if (scanner.getSectionsScanned() == 0) {
+                throw new IllegalStateException("fingerprint missed the changed light of section 3");
+            }
+        }
+        finally {
+            section[7] ^= 0x80;
+            section[23] ^= 0x80;
+        }
+    }
+
+    private void createCaves() {
+        for (int tunnel = 0; tunnel < 6; tunnel++) {
+            double x = random.nextInt(16);
+            double y = 20 + random.nextInt(36);
+            double z = random.nextInt(16);
+            double yaw = random.nextDouble() * Math.PI * 2;
+            for (int step = 0; step < 24; step++) {
+                int radius = 2 + random.nextInt(2);
+                carve((int) x, (int) y, (int) z, radius);
+                if (step % 8 == 4) {
+                    addTorch((int) x, (int) y - radius + 1, (int) z);
+                }
+                yaw += (random.nextDouble() - 0.5) * 0.8;
+                x += Math.cos(yaw);
+                z += Math.sin(yaw);
+                y += random.nextDouble() - 0.5;
+            }
+        }
+        // a few pools on the floor of the tunnels
+        for (int i = 0; i < 40; i++) {
+            int x = random.nextInt(16);
+            int z = random.nextInt(16);
+            for (int y = 21; y < 56; y++) {
+                if (get(x, y, z) == 0 && get(x, y - 1, z) == STONE) {
+                    set(x, y, z, WATER, 0);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void carve(int centerX, int centerY, int centerZ, int radius) {
+        for (int x = centerX - radius; x <= centerX + radius; x++) {
+            for (int y = centerY - radius; y <= centerY + radius; y++) {
+                for (int z = centerZ - radius; z <= centerZ + radius; z++) {
+                    int dx = x - centerX, dy = y - centerY, dz = z - centerZ;
+                    if (dx * dx + dy * dy + dz * dz <= radius * radius && inChunk(x, y, z)) {
+                        set(x, y, z, 0, 0);
+                    }
+                }
+            }
+        }
+    }
+
+    private void createTree(int trunkX, int trunkZ) {
+        int height = 4 + random.nextInt(3);
+        int top = SURFACE_Y + height;
+        for (int x = trunkX - 2; x <= trunkX + 2; x++) {
+            for (int z = trunkZ - 2; z <= trunkZ + 2; z++) {
+                for (int y = top - 2; y <= top + 1; y++) {
+                    int radius = y > top - 1 ? 1 : 2;
+                    if (Math.abs(x - trunkX) <= radius && Math.abs(z - trunkZ) <= radius &&
+                            inChunk(x, y, z) && get(x, y, z) == 0) {
+                        set(x, y, z, LEAVES, 0);
+                    }
+                }
+            }
+        }
+        for (int y = SURFACE_Y + 1; y <= top; y++) {
+            set(trunkX, y, trunkZ, LOG, 0);
+        }
+    }
+
+    private void createBase() {
+        int[] floors = { SURFACE_Y, SURFACE_Y + 5, SURFACE_Y + 10 };
+        int roof = SURFACE_Y + 15;
+        for (int x = 2; x <= 13; x++) {
+            for (int z = 2; z <= 13; z++) {
+                boolean wall = x == 2 || x == 13 || z == 2 || z == 13;
+                for (int y = SURFACE_Y; y <= roof; y++) {
+                    if (wall) {
+                        // windows on every floor
+                        boolean window = (y - SURFACE_Y) % 5 == 2 && (x + z) % 3 == 0;
+                        set(x, y, z, window ? GLASS : PLANKS, 0);
+                    }
+                }
+                for (int floor : floors) {
+                    set(x, floor, z, PLANKS, 0);
+                }
+                set(x, roof, z, PLANKS, 0);
+
+                if (!wall) {
+                    // carpet on the first floor, slabs on the second
+                    if (x < 8) {
+                        set(x, floors[1] + 1, z, CARPET, (x + z) & 15);
+                    }
+                    if (z < 8) {
+                        set(x, floors[2] + 1, z, STONE_SLAB, (x & 1) != 0 ? 8 : 0);
+                    }
+                }
+            }
+        }
+        for (int floor : floors) {
+            addTorch(5, floor + 1, 5);
+            addTorch(10, floor + 1, 10);
+        }
+    }
+
+    private void addTorch(int x, int y, int z) {
+        if (!inChunk(x, y, z) || torchCount * 3 == torches.length) return;
+        set(x, y, z, TORCH, 5);
+        torches[torchCount * 3] = x;
+        torches[torchCount * 3 + 1] = y;
+        torches[torchCount * 3 + 2] = z;
+        torchCount++;
+    }
+
+    private void updateHeightMap() {
+        for (int column = 0; column < 256; column++) {
+            int y = 255;
+            while (y >= 0 && get(column & 15, y, column >> 4) == 0) {
+                y--;
+            }
+            heightMap[column] = y + 1;
+        }
+    }
+
+    /**
+     * Block light falling off with the distance to the torches, walls are
+     * ignored but blocks that are not air or torches are dark.
+     */
+    private void updateLight() {
+        for (int sectionY = 0; sectionY < 16; sectionY++) {
+            if (blocks[sectionY] == null) continue;
+            for (int index = 0; index < 4096; index++) {
+                int x = index & 15;
+                int z = (index >> 4) & 15;
+                int y = sectionY << 4 | index >> 8;
+                int id = blocks[sectionY][index] & 255;
+                int level = 0;
+                if (id == 0 || id == TORCH || id == CARPET) {
+                    for (int i = 0; i < torchCount; i++) {
+                        int distance = Math.abs(x - torches[i * 3]) + Math.abs(y - torches[i * 3 + 1]) +
+                            Math.abs(z - torches[i * 3 + 2]);
+                        level = Math.max(level, 14 - distance);
+                    }
+                }
+                setNibble(light[sectionY], index, level);
+            }
+        }
+    }
+
+    private boolean inChunk(int x, int y, int z) {
+        return x >= 0 && x < 16 && y >= 0 && y < 256 && z >= 0 && z < 16;
+    }
+
+    private int get(int x, int y, int z) {
+        byte[] section = blocks[y >> 4];
+        return section != null ? section[(y & 15) << 8 | z << 4 | x] & 255 : 0;
+    }
+
+    private void set(int x, int y, int z, int id, int metadata) {
+        int sectionY = y >> 4;
+        if (blocks[sectionY] == null) {
+            blocks[sectionY] = new byte[4096];
+            data[sectionY] = new byte[2048];
+            light[sectionY] = new byte[2048];
+        }
+        int index = (y & 15) << 8 | z << 4 | x;
+        blocks[sectionY][index] = (byte) id;
+        setNibble(data[sectionY], index, metadata);
+    }
+
+    private static void setNibble(byte[] nibbles, int index, int value) {
+        int shift = (index & 1) << 2;
+        nibbles[index >> 1] = (byte) ((nibbles[index >> 1] & ~(15 << shift)) | (value & 15) << shift);
+    }
+}
@@ -0,0 +1,80 @@
+package cc.apoc.lloverlay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Passing the overlays of one chunk to the renderer, the packing into the
+ * primitive arrays of the vanilla renderer or the vertex data of the fast
+ * renderer. Nothing is drawn, no OpenGL context is needed.
+ *
+ * The vanilla renderer only gets its arrays back from the render thread,
+ * without it every chunk allocates new ones.
+ *
+ * The throughput is in chunks per second, overlays per second are reported
+ * by the counters. Run with -prof gc for the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class LightLevelOverlayRendererBenchmark {
+    @Param({ "flat", "caves", "forest", "base" })
+    public String scenario;
+
+    @Param({ "vanilla", "fast" })
+    public String renderer;
+
+    @Param({ "false", "true" })
+    public boolean merged;
+
+    private LightLevelOverlayRenderer overlayRenderer;
+    private LightLevelOverlayChunk overlays;
+    private LightLevelOverlayMerger merger;
+
+    @Setup
+    public void setup() throws IOException {
+        File file = File.createTempFile("lloverlay", ".properties");
+        file.deleteOnExit();
+        file.delete();
+        LightLevelOverlayConfig config = new LightLevelOverlayConfig(file);
+        if (renderer.equals("vanilla"))
+            overlayRenderer = new LightLevelOverlayRendererVanilla(config);
+        else
+            overlayRenderer = new LightLevelOverlayRendererVBO(config);
+
+        LightLevelOverlayFixture fixture = new LightLevelOverlayFixture(scenario);
+        overlays = new LightLevelOverlayChunk(0, 0);
+        fixture.generate(new LightLevelOverlayScanner(LightLevelOverlayFixture.createSurfaceTable(),
+                15, 0, false, false, true), overlays, false);
+        merger = new LightLevelOverlayMerger();
+    }
+
+    @Benchmark
+    public void addChunk(LightLevelOverlayCounters counters) {
+        overlayRenderer.startChunk(0, 0);
+        if (merged)
+            overlays.renderMerged(overlayRenderer, merger);
+        else
+            overlays.render(overlayRenderer);
+        overlayRenderer.stopChunk();
+        // publishes the chunk and drops the replaced one
+        overlayRenderer.stopGenerate();
+        counters.overlays += overlays.getSize();
+    }
+}
@@ -0,0 +1,68 @@
+package cc.apoc.lloverlay;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Generation of the overlays of one chunk: the scan of the sections with the
+ * classification of every block, and the pass over a chunk that didn't
+ * change where every section is reused by its fingerprint.
+ *
+ * The throughput is in chunks per second, overlays per second are reported
+ * by the counters. Run with -prof gc for the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LightLevelOverlayScannerBenchmark {
+    @Param({ "flat", "caves", "forest", "base" })
+    public String scenario;
+
+    @Param({ "false", "true" })
+    public boolean spawnableOnly;
+
+    private LightLevelOverlayFixture fixture;
+    // the generation thread keeps a scanner per worker as well
+    private LightLevelOverlayScanner scanner;
+    private LightLevelOverlayChunk overlays;
+
+    @Setup
+    public void setup() {
+        fixture = new LightLevelOverlayFixture(scenario);
+        scanner = new LightLevelOverlayScanner(LightLevelOverlayFixture.createSurfaceTable(),
+                15, 0, false, spawnableOnly, true);
+        fixture.checkFingerprint(scanner);
+        overlays = new LightLevelOverlayChunk(0, 0);
+        // both passes of the chunk get fingerprints for rescan()
+        fixture.generate(scanner, overlays, false);
+        fixture.generate(scanner, overlays, false);
+    }
+
+    @Benchmark
+    public int scan(LightLevelOverlayCounters counters) {
+        fixture.generate(scanner, overlays, false);
+        counters.overlays += overlays.getSize();
+        return overlays.getSize();
+    }
+
+    @Benchmark
+    public int rescan(LightLevelOverlayCounters counters) {
+        fixture.generate(scanner, overlays, true);
+        counters.overlays += overlays.getSize();
+        return overlays.getSize();
+    }
+}
@@ -5,6 +5,7 @@ import java.io.File;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.RenderBlocks;
 import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.world.World;
 
 import org.lwjgl.input.Keyboard;
 import org.lwjgl.opengl.GLContext;
@@ -40,6 +41,10 @@ class LightLevelOverlay {
     private LightLevelOverlayRenderer renderer;
     private LightLevelOverlayThread thread;
     private LightLevelOverlayConfig config;
+    private LightLevelOverlayMetrics metrics;
+    private LightLevelOverlayHud hud;
+    private LightLevelOverlayRadiusController radius;
+    private LightLevelOverlayThrottle throttle;
 
     // manual keypress event handling for the hotkey
     private long lastHotkeyKeydown;
@@ -47,6 +52,10 @@ class LightLevelOverlay {
     private boolean active = false;
     // point in time of the frame
     private long frameTime;
+    // world the listener of the thread is registered with
+    private World listenerWorld;
+    // renderHud() is called by the in-game GUI pass
+    private boolean hudInGameOverlay = false;
 
     
     private Minecraft mc;
@@ -57,6 +66,10 @@ class LightLevelOverlay {
 
         File file = new File(Minecraft.getMinecraft().mcDataDir, "config/lloverlay.properties");
         config = new LightLevelOverlayConfig(file);
+        metrics = LightLevelOverlayMetrics.getInstance();
+        hud = new LightLevelOverlayHud(metrics);
+        radius = new LightLevelOverlayRadiusController(config);
+        throttle = new LightLevelOverlayThrottle(config);
         
         debugMessage("loading");
         reload();
@@ -64,24 +77,63 @@ class LightLevelOverlay {
 
 
     public void render(RenderBlocks renderBlocks, float partialTickTime) {
-        thread.setRenderBlocks(renderBlocks);
         frameTime = System.currentTimeMillis();
+        throttle.frameStarted(System.nanoTime());
         if (mc.currentScreen == null)
             hotkeyPoll();
-        if(!active) return;
+        updateWorldListener();
         
         EntityPlayer player = mc.thePlayer;
+        if (player != null) {
+            thread.updatePlayerPosition(player.chunkCoordX, player.chunkCoordZ, (int) Math.floor(player.posY));
+        }
+        if(!active) return;
         
         double x = player.lastTickPosX + (player.posX - player.lastTickPosX) * (double) partialTickTime;
         double y = player.lastTickPosY + (player.posY - player.lastTickPosY) * (double) partialTickTime;
         double z = player.lastTickPosZ + (player.posZ - player.lastTickPosZ) * (double) partialTickTime;
 
+        long renderStart = System.nanoTime();
         renderer.render(x, y, z);
+        long renderTime = System.nanoTime() - renderStart;
+        metrics.frameTime.record(renderTime);
+
+        if (radius.frameRendered(renderTime, frameTime)) {
+            thread.schedule();
+        }
+
+        if (!hudInGameOverlay) {
+            renderHud();
+        }
+    }
+
+    /**
+     * Draws the metrics HUD, Forge calls this after the in-game GUI.
+     */
+    public void renderHud() {
+        if (active && config.isShowMetrics()) {
+            hud.render(mc, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * The HUD is drawn with renderHud() from the pass of the in-game GUI
+     * instead of at the end of render().
+     */
+    public void setHudInGameOverlay(boolean hudInGameOverlay) {
+        this.hudInGameOverlay = hudInGameOverlay;
     }
     
     protected void reload() {
-        if ((config.getRenderer() == LightLevelOverlayConfig.Renderer.FAST ||
-            config.getRenderer() == LightLevelOverlayConfig.Renderer.AUTO) &&
+        metrics.setEnabled(config.isShowMetrics());
+        renderer = null;
+        if (config.getRenderer() == LightLevelOverlayConfig.Renderer.INSTANCED) {
+            renderer = createInstancedRenderer();
+        }
+        if (renderer != null) {
+            System.out.println("lloverlay is using renderer 'instanced' (shader)");
+        }
+        else if (config.getRenderer() != LightLevelOverlayConfig.Renderer.VANILLA &&
            GLContext.getCapabilities().OpenGL15) {
            renderer = new LightLevelOverlayRendererVBO(config);
            System.out.println("lloverlay is using renderer 'fast' (VBO)");
@@ -93,8 +145,61 @@ class LightLevelOverlay {
         if (thread != null) {
             thread.setActive(false);
             thread.interrupt();
+            removeWorldListener();
+        }
+        thread = new LightLevelOverlayThread(config, renderer, radius, throttle);
+    }
+
+    /**
+     * Generates the overlays again with the changed settings.
+     */
+    protected void configChanged() {
+        metrics.setEnabled(config.isShowMetrics());
+        thread.schedule();
+    }
+
+    /**
+     * Creates the instanced renderer if the context supports it.
+     * 
+     * @return null if the renderer is not available
+     */
+    private LightLevelOverlayRenderer createInstancedRenderer() {
+        if (!LightLevelOverlayRendererInstanced.isSupported()) {
+            System.out.println("lloverlay renderer 'instanced' needs OpenGL 2.0 and instanced arrays");
+            return null;
+        }
+        try {
+            return new LightLevelOverlayRendererInstanced(config);
+        }
+        catch (RuntimeException e) {
+            // the info log of the shader compiler, not only in debug mode
+            System.err.printf("[LightLevelOverlay] renderer 'instanced' is not available: %s\n", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Registers the world listener of the thread with the current world,
+     * so it is notified of block and light updates, and builds the surface
+     * table for the blocks of the world.
+     */
+    private void updateWorldListener() {
+        if (mc.theWorld != listenerWorld) {
+            removeWorldListener();
+            if (mc.theWorld != null) {
+                debugMessage("register world listener");
+                mc.theWorld.addWorldAccess(thread.getWorldListener());
+                listenerWorld = mc.theWorld;
+                thread.setSurfaceTable(new LightLevelOverlaySurfaceTable(config.getOverlayBlocks()));
+            }
+        }
+    }
+
+    private void removeWorldListener() {
+        if (listenerWorld != null) {
+            listenerWorld.removeWorldAccess(thread.getWorldListener());
+            listenerWorld = null;
         }
-        thread = new LightLevelOverlayThread(config, renderer);
     }
 
     private void hotkeyPoll() {
@@ -106,9 +211,9 @@ class LightLevelOverlay {
             }
             else {
                 active = (active) ? false : true; // toggle!
+                renderer.clear();
                 thread.setActive(active);
                 debugMessage("toggle active: %s", active);
-                renderer.clear();
                 if (!thread.isAlive()) {
                     debugMessage("starting thread");
                     try {
@@ -117,7 +222,8 @@ class LightLevelOverlay {
                     catch (Exception e) {
                         debugMessage("unable to start lloverlay thread!");
                         e.printStackTrace();
-                        thread = new LightLevelOverlayThread(config, renderer);
+                        removeWorldListener();
+                        thread = new LightLevelOverlayThread(config, renderer, radius, throttle);
                     }
                 }
             }
@@ -0,0 +1,68 @@
+package cc.apoc.lloverlay;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import org.lwjgl.opengl.ARBMapBufferRange;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GLContext;
+
+/**
+ * Replaces the data of buffer objects that may still be drawn from.
+ *
+ * The storage of the buffer is orphaned with glBufferData(null) first, so
+ * the driver hands out new memory instead of waiting for the draws of the
+ * previous frames. With OpenGL 3.0 or ARB_map_buffer_range the new memory
+ * is mapped unsynchronized and written directly, otherwise the data is
+ * copied into a direct buffer and passed to glBufferData().
+ *
+ * Only used by the render thread.
+ */
+class LightLevelOverlayBufferUpload {
+    private static final int MAP_ACCESS = GL30.GL_MAP_WRITE_BIT |
+        GL30.GL_MAP_INVALIDATE_BUFFER_BIT | GL30.GL_MAP_UNSYNCHRONIZED_BIT;
+
+    private boolean mapBufferRange;
+    // use the core function of OpenGL 3.0 instead of the extension
+    private boolean core;
+
+    // direct buffer for uploads without mapping, grows with the largest upload
+    private ShortBuffer staging;
+
+    public LightLevelOverlayBufferUpload() {
+        ContextCapabilities caps = GLContext.getCapabilities();
+        core = caps.OpenGL30;
+        mapBufferRange = caps.OpenGL30 || caps.GL_ARB_map_buffer_range;
+    }
+
+    /**
+     * Uploads the data into the buffer bound to the target.
+     */
+    public void upload(int target, short[] data) {
+        long size = (long) data.length * 2;
+
+        if (mapBufferRange && data.length > 0) {
+            GL15.glBufferData(target, size, GL15.GL_DYNAMIC_DRAW);
+            ByteBuffer mapped = core ?
+                GL30.glMapBufferRange(target, 0, size, MAP_ACCESS, null) :
+                ARBMapBufferRange.glMapBufferRange(target, 0, size, MAP_ACCESS, null);
+            if (mapped != null) {
+                mapped.order(ByteOrder.nativeOrder()).asShortBuffer().put(data);
+                // false if the memory got lost in the meantime, uploaded below again
+                if (GL15.glUnmapBuffer(target)) return;
+            }
+        }
+
+        if (staging == null || data.length > staging.capacity()) {
+            int capacity = Math.max(256, Integer.highestOneBit(Math.max(1, data.length)) * 2);
+            staging = ByteBuffer.allocateDirect(capacity * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+        }
+        staging.clear();
+        staging.put(data);
+        staging.flip();
+        GL15.glBufferData(target, staging, GL15.GL_DYNAMIC_DRAW);
+    }
+}
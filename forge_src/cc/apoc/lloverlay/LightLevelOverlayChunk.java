@@ -0,0 +1,165 @@
+package cc.apoc.lloverlay;
+
+import java.util.Arrays;
+
+/**
+ * Overlays generated for a single chunk.
+ *
+ * The generation thread keeps one of these per chunk in range and only
+ * fills it again when the chunk has been marked dirty, the renderer only
+ * gets the overlays of chunks that changed (or all of them after clear()).
+ *
+ * The overlays of the last pass are kept with a fingerprint per section,
+ * sections that didn't change are copied instead of scanned again.
+ */
+class LightLevelOverlayChunk {
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Overlays of one pass and the range of every section in them.
+     */
+    private static class Overlays {
+        public int size = 0;
+        public int[] x = new int[INITIAL_CAPACITY];
+        public int[] y = new int[INITIAL_CAPACITY];
+        public int[] z = new int[INITIAL_CAPACITY];
+        public double[] blockHeight = new double[INITIAL_CAPACITY];
+        public int[] tex = new int[INITIAL_CAPACITY];
+
+        public boolean[] sectionValid = new boolean[16];
+        public long[] sectionFingerprint = new long[16];
+        public int[] sectionStart = new int[16];
+        public int[] sectionEnd = new int[16];
+
+        public void clear() {
+            size = 0;
+            Arrays.fill(sectionValid, false);
+        }
+
+        public void ensureCapacity(int capacity) {
+            if (capacity <= x.length) return;
+            capacity = Math.max(capacity, x.length * 2);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            z = Arrays.copyOf(z, capacity);
+            blockHeight = Arrays.copyOf(blockHeight, capacity);
+            tex = Arrays.copyOf(tex, capacity);
+        }
+    }
+
+    public final int chunkX;
+    public final int chunkZ;
+
+    // set for changed chunks, generated again in the next pass
+    public boolean dirty = false;
+    // cleared when the renderer needs the overlays again
+    public boolean sent = false;
+    // the renderer got merged overlays
+    public boolean sentMerged = false;
+
+    private Overlays current = new Overlays();
+    // overlays of the last pass, unchanged sections are copied from them
+    private Overlays previous = new Overlays();
+    // a section was scanned in this pass
+    private boolean scanned = false;
+
+    public LightLevelOverlayChunk(int chunkX, int chunkZ) {
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+    }
+
+    /**
+     * Starts a new pass, the overlays so far become the ones of the last pass.
+     */
+    public void beginPass() {
+        Overlays last = current;
+        current = previous;
+        previous = last;
+        current.clear();
+        scanned = false;
+    }
+
+    /**
+     * Checks if this pass got other overlays than the last one.
+     */
+    public boolean isChanged() {
+        return scanned || !Arrays.equals(current.sectionValid, previous.sectionValid);
+    }
+
+    /**
+     * Copies the overlays of the section from the last pass if the section
+     * had the same fingerprint then.
+     *
+     * @return false if the section has to be scanned
+     */
+    public boolean reuseSection(int sectionY, long fingerprint) {
+        if (!previous.sectionValid[sectionY] || previous.sectionFingerprint[sectionY] != fingerprint) {
+            return false;
+        }
+        int start = previous.sectionStart[sectionY];
+        int count = previous.sectionEnd[sectionY] - start;
+        int size = current.size;
+        current.ensureCapacity(size + count);
+        System.arraycopy(previous.x, start, current.x, size, count);
+        System.arraycopy(previous.y, start, current.y, size, count);
+        System.arraycopy(previous.z, start, current.z, size, count);
+        System.arraycopy(previous.blockHeight, start, current.blockHeight, size, count);
+        System.arraycopy(previous.tex, start, current.tex, size, count);
+
+        current.sectionValid[sectionY] = true;
+        current.sectionFingerprint[sectionY] = fingerprint;
+        current.sectionStart[sectionY] = size;
+        current.size += count;
+        stopSection(sectionY);
+        return true;
+    }
+
+    /**
+     * The overlays added until stopSection() belong to the section.
+     */
+    public void startSection(int sectionY, long fingerprint) {
+        scanned = true;
+        current.sectionValid[sectionY] = true;
+        current.sectionFingerprint[sectionY] = fingerprint;
+        current.sectionStart[sectionY] = current.size;
+    }
+
+    public void stopSection(int sectionY) {
+        current.sectionEnd[sectionY] = current.size;
+    }
+
+    public void addOverlay(int x, int y, int z, double blockHeight, int tex) {
+        Overlays overlays = current;
+        int size = overlays.size;
+        overlays.ensureCapacity(size + 1);
+        overlays.x[size] = x;
+        overlays.y[size] = y;
+        overlays.z[size] = z;
+        overlays.blockHeight[size] = blockHeight;
+        overlays.tex[size] = tex;
+        overlays.size++;
+    }
+
+    /**
+     * Adds all overlays of this chunk to the renderer.
+     */
+    public void render(LightLevelOverlayRenderer renderer) {
+        Overlays overlays = current;
+        for (int i = 0; i < overlays.size; i++) {
+            renderer.addOverlay(overlays.x[i], overlays.y[i], overlays.z[i], overlays.blockHeight[i], overlays.tex[i]);
+        }
+    }
+
+    /**
+     * Adds the overlays of this chunk merged into larger quads to the renderer.
+     */
+    public void renderMerged(LightLevelOverlayRenderer renderer, LightLevelOverlayMerger merger) {
+        Overlays overlays = current;
+        merger.render(renderer, chunkX, chunkZ, overlays.x, overlays.y, overlays.z,
+                overlays.blockHeight, overlays.tex, overlays.size);
+    }
+
+    public int getSize() {
+        return current.size;
+    }
+}
@@ -0,0 +1,131 @@
+package cc.apoc.lloverlay;
+
+import java.util.Arrays;
+
+/**
+ * Map from chunk keys (ChunkCoordIntPair.chunkXZ2Int) to values, with
+ * linear probing in plain arrays. Unlike a HashMap it doesn't box the keys
+ * or allocate entries, only growing allocates and the arrays are kept.
+ *
+ * The values are iterated by slot, getValue() is null for empty slots:
+ *
+ *     for (int slot = 0; slot < map.getCapacity(); slot++)
+ *
+ * The map must not be changed while iterating, removals shift entries to
+ * other slots.
+ */
+class LightLevelOverlayChunkMap<V> {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    // null for empty slots
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    private int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return values.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V getValue(int slot) {
+        return (V) values[slot];
+    }
+
+    public V get(long key) {
+        int mask = values.length - 1;
+        for (int slot = getSlot(key, mask); values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) return getValue(slot);
+        }
+        return null;
+    }
+
+    /**
+     * @return the value replaced, null if there was none
+     */
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null value for chunk key " + key);
+        }
+        // at most half full, the probe sequences stay short
+        if ((size + 1) * 2 > values.length) {
+            resize(values.length * 2);
+        }
+
+        int mask = values.length - 1;
+        int slot = getSlot(key, mask);
+        for (; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                V old = getValue(slot);
+                values[slot] = value;
+                return old;
+            }
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        return null;
+    }
+
+    /**
+     * @return the value removed, null if there was none
+     */
+    public V remove(long key) {
+        int mask = values.length - 1;
+        int slot = getSlot(key, mask);
+        while (values[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (values[slot] == null) return null;
+        V old = getValue(slot);
+
+        // close the gap, the entries after it that would not be found
+        // anymore move into it (those whose home slot isn't between the gap
+        // and their slot)
+        int gap = slot;
+        for (int next = (gap + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+            int home = getSlot(keys[next], mask);
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        values[gap] = null;
+        size--;
+        return old;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == null) continue;
+            int slot = getSlot(oldKeys[i], mask);
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    /**
+     * Home slot of a key, x and z are in the low and high half of the key
+     * and the multiply mixes both into the upper bits.
+     */
+    private static int getSlot(long key, int mask) {
+        return (int) ((key * 0x9e3779b97f4a7c15L) >>> 32) & mask;
+    }
+}
@@ -5,12 +5,36 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Properties;
 
+import net.minecraft.block.Block;
 import net.minecraft.client.settings.GameSettings;
 
 public class LightLevelOverlayConfig {
 
+    /**
+     * List of non-opaque blocks we draw overlays onto.
+     */
+    static final int[] DEFAULT_OVERLAY_BLOCKS = new int[] {
+        Block.tilledField.blockID,
+        Block.woodSingleSlab.blockID, 
+        Block.stoneSingleSlab.blockID,
+        Block.glass.blockID, 
+        Block.snow.blockID, 
+        Block.ice.blockID,
+        Block.glowStone.blockID, 
+        Block.pistonBase.blockID,
+        Block.pistonStickyBase.blockID,
+        Block.pressurePlateStone.blockID,
+        Block.pressurePlatePlanks.blockID,
+        Block.pressurePlateGold.blockID,
+        Block.pressurePlateIron.blockID,
+        Block.daylightSensor.blockID,
+        Block.leaves.blockID,
+        Block.carpet.blockID // carpet
+    };
+
     private File file;
     
     
@@ -30,21 +54,54 @@ public class LightLevelOverlayConfig {
     private int textureRow;
     // only draw overlay for lightlevel <n> and lower.
     private int showLightlevelUpto;
-    // interval in ms in which the overlay cache should be generated,
-    // for instance if you place a torch its at least 250 ms till the
-    // overlays are updated
-    private int generateInterval;
+    // delay in ms between a change (placed torch, player moved to another
+    // chunk...) and the generation, changes within the delay are generated
+    // together
+    private int generateDelay;
+    // milliseconds a generation pass may take, the chunks farthest away
+    // are left for the next pass when it is used up (0 = no limit)
+    private int generateBudget;
+    // percent of the time the generation may run, it sleeps in between the
+    // batches of chunks for the rest (1 to 100, 100 = no sleeping)
+    private int generateDutyCycle;
     // overlay drawing area around the player
     private int drawChunks; // 4 chunks around the player
+    // pick drawChunks between minDrawChunks and maxDrawChunks so the
+    // render time per frame and the time of a full generation pass (both
+    // in ms) stay within their targets
+    private boolean autoDrawChunks;
+    private int minDrawChunks;
+    private int maxDrawChunks;
+    private int renderTimeTarget;
+    private int passTimeTarget;
+    // chunks around the player that get the digits, the overlays of
+    // chunks farther away are merged into quads of a single colour
+    private int detailDistance;
+    // blocks below the players head that are scanned for overlays
+    private int drawDepth;
+    // kilobytes of vertex data the fast renderer uploads per frame,
+    // changed chunks exceeding it are uploaded in the next frames
+    private int uploadBudget;
     
     // show the lightlevel affected by the sun
     private boolean useSkyLightlevel;
     
-    // what renderer to use (slow 'vanilla', or 'fast') auto=autodetect
+    // only draw overlays where mobs can spawn, on a solid top surface
+    // with two blocks of space above it
+    private boolean spawnableOnly;
+    
+    // record metrics and show them in the top left corner
+    private boolean showMetrics;
+    
+    // non-opaque blocks that get overlays, ids of modded blocks can be added
+    private int[] overlayBlocks;
+    
+    // what renderer to use (slow 'vanilla', 'fast' or 'instanced') auto=autodetect
     public enum Renderer {
         AUTO,
         VANILLA,
-        FAST
+        FAST,
+        INSTANCED
     }
     private Renderer renderer = Renderer.AUTO;
     
@@ -65,12 +122,25 @@ public class LightLevelOverlayConfig {
     public void save() {
         Properties properties = new Properties();
         properties.setProperty("drawChunks", Integer.toString(drawChunks));
+        properties.setProperty("autoDrawChunks", Boolean.toString(autoDrawChunks));
+        properties.setProperty("minDrawChunks", Integer.toString(minDrawChunks));
+        properties.setProperty("maxDrawChunks", Integer.toString(maxDrawChunks));
+        properties.setProperty("renderTimeTarget", Integer.toString(renderTimeTarget));
+        properties.setProperty("passTimeTarget", Integer.toString(passTimeTarget));
+        properties.setProperty("drawDepth", Integer.toString(drawDepth));
+        properties.setProperty("detailDistance", Integer.toString(detailDistance));
+        properties.setProperty("uploadBudget", Integer.toString(uploadBudget));
         properties.setProperty("hotkey", Integer.toString(hotkey));
-        properties.setProperty("generateInterval", Integer.toString(generateInterval));
+        properties.setProperty("generateDelay", Integer.toString(generateDelay));
+        properties.setProperty("generateBudget", Integer.toString(generateBudget));
+        properties.setProperty("generateDutyCycle", Integer.toString(generateDutyCycle));
         properties.setProperty("textureRow", Integer.toString(textureRow));
         properties.setProperty("debug", Boolean.toString(debug));
         properties.setProperty("showLightlevelUpto", Integer.toString(showLightlevelUpto));
         properties.setProperty("useSkyLightlevel", Boolean.toString(useSkyLightlevel));
+        properties.setProperty("spawnableOnly", Boolean.toString(spawnableOnly));
+        properties.setProperty("showMetrics", Boolean.toString(showMetrics));
+        properties.setProperty("overlayBlocks", getIntListString(overlayBlocks));
         properties.setProperty("renderer", getRendererString());
         try {
             properties.store(new FileOutputStream(file), "Lightlevel Overlay Config");
@@ -86,6 +156,8 @@ public class LightLevelOverlayConfig {
         switch (renderer) {
         case FAST:
             return "fast";
+        case INSTANCED:
+            return "instanced";
         case VANILLA:
             return "vanilla";
         case AUTO:
@@ -100,23 +172,59 @@ public class LightLevelOverlayConfig {
             renderer = Renderer.VANILLA;
         else if (r.equals("fast"))
             renderer = Renderer.FAST;
+        else if (r.equals("instanced"))
+            renderer = Renderer.INSTANCED;
         else
             renderer = Renderer.AUTO;
         return renderer;
     }
 
+    public String getIntListString(int[] list) {
+        StringBuilder string = new StringBuilder();
+        for (int i = 0; i < list.length; i++) {
+            if (i > 0) string.append(',');
+            string.append(list[i]);
+        }
+        return string.toString();
+    }
+    
+    public int[] parseIntListString(String string) {
+        String[] elements = string.split(",");
+        int[] list = new int[elements.length];
+        int size = 0;
+        for (String element : elements) {
+            if (element.trim().length() > 0) {
+                list[size++] = Integer.parseInt(element.trim());
+            }
+        }
+        return Arrays.copyOf(list, size);
+    }
+
     public void load() {
         Properties properties = new Properties();
         try {
             file.createNewFile();
             properties.load(new FileInputStream(file));
             drawChunks = Integer.parseInt(properties.getProperty("drawChunks", "4"));
+            autoDrawChunks = Boolean.parseBoolean(properties.getProperty("autoDrawChunks", "false"));
+            minDrawChunks = Integer.parseInt(properties.getProperty("minDrawChunks", "2"));
+            maxDrawChunks = Integer.parseInt(properties.getProperty("maxDrawChunks", "16"));
+            renderTimeTarget = Integer.parseInt(properties.getProperty("renderTimeTarget", "2"));
+            passTimeTarget = Integer.parseInt(properties.getProperty("passTimeTarget", "250"));
+            drawDepth = Integer.parseInt(properties.getProperty("drawDepth", "64"));
+            detailDistance = Integer.parseInt(properties.getProperty("detailDistance", "8"));
+            uploadBudget = Integer.parseInt(properties.getProperty("uploadBudget", "512"));
             hotkey = Integer.parseInt(properties.getProperty("hotkey", "67"));
-            generateInterval = Integer.parseInt(properties.getProperty("generateInterval", "250"));
+            generateDelay = Integer.parseInt(properties.getProperty("generateDelay", "50"));
+            generateBudget = Integer.parseInt(properties.getProperty("generateBudget", "0"));
+            setGenerateDutyCycle(Integer.parseInt(properties.getProperty("generateDutyCycle", "50")));
             textureRow = Integer.parseInt(properties.getProperty("textureRow", "0"));
             debug = Boolean.parseBoolean(properties.getProperty("debug", "false"));
             showLightlevelUpto = Integer.parseInt(properties.getProperty("showLightlevelUpto", "15"));
             useSkyLightlevel = Boolean.parseBoolean(properties.getProperty("useSkyLightlevel", "false"));
+            spawnableOnly = Boolean.parseBoolean(properties.getProperty("spawnableOnly", "false"));
+            showMetrics = Boolean.parseBoolean(properties.getProperty("showMetrics", "false"));
+            overlayBlocks = parseIntListString(properties.getProperty("overlayBlocks", getIntListString(DEFAULT_OVERLAY_BLOCKS)));
             renderer = parseRendererString(properties.getProperty("renderer", "auto"));
             debugMessage("config loaded: %s", file);
         } catch (FileNotFoundException e) {
@@ -187,12 +295,28 @@ public class LightLevelOverlayConfig {
         this.showLightlevelUpto = showLightlevelUpto;
     }
 
-    public int getGenerateInterval() {
-        return generateInterval;
+    public int getGenerateDelay() {
+        return generateDelay;
+    }
+
+    public void setGenerateDelay(int generateDelay) {
+        this.generateDelay = generateDelay;
+    }
+
+    public int getGenerateBudget() {
+        return generateBudget;
     }
 
-    public void setGenerateInterval(int generateInterval) {
-        this.generateInterval = generateInterval;
+    public void setGenerateBudget(int generateBudget) {
+        this.generateBudget = generateBudget;
+    }
+
+    public int getGenerateDutyCycle() {
+        return generateDutyCycle;
+    }
+
+    public void setGenerateDutyCycle(int generateDutyCycle) {
+        this.generateDutyCycle = Math.max(1, Math.min(100, generateDutyCycle));
     }
 
     public int getDrawChunks() {
@@ -203,6 +327,70 @@ public class LightLevelOverlayConfig {
         this.drawChunks = drawChunks;
     }
 
+    public boolean isAutoDrawChunks() {
+        return autoDrawChunks;
+    }
+
+    public void setAutoDrawChunks(boolean autoDrawChunks) {
+        this.autoDrawChunks = autoDrawChunks;
+    }
+
+    public int getMinDrawChunks() {
+        return minDrawChunks;
+    }
+
+    public void setMinDrawChunks(int minDrawChunks) {
+        this.minDrawChunks = minDrawChunks;
+    }
+
+    public int getMaxDrawChunks() {
+        return maxDrawChunks;
+    }
+
+    public void setMaxDrawChunks(int maxDrawChunks) {
+        this.maxDrawChunks = maxDrawChunks;
+    }
+
+    public int getRenderTimeTarget() {
+        return renderTimeTarget;
+    }
+
+    public void setRenderTimeTarget(int renderTimeTarget) {
+        this.renderTimeTarget = renderTimeTarget;
+    }
+
+    public int getPassTimeTarget() {
+        return passTimeTarget;
+    }
+
+    public void setPassTimeTarget(int passTimeTarget) {
+        this.passTimeTarget = passTimeTarget;
+    }
+
+    public int getDrawDepth() {
+        return drawDepth;
+    }
+
+    public void setDrawDepth(int drawDepth) {
+        this.drawDepth = drawDepth;
+    }
+
+    public int getDetailDistance() {
+        return detailDistance;
+    }
+
+    public void setDetailDistance(int detailDistance) {
+        this.detailDistance = detailDistance;
+    }
+
+    public int getUploadBudget() {
+        return uploadBudget;
+    }
+
+    public void setUploadBudget(int uploadBudget) {
+        this.uploadBudget = uploadBudget;
+    }
+
     public boolean isUseSkyLightlevel() {
         return useSkyLightlevel;
     }
@@ -211,6 +399,30 @@ public class LightLevelOverlayConfig {
         this.useSkyLightlevel = useSkyLightlevel;
     }
 
+    public boolean isSpawnableOnly() {
+        return spawnableOnly;
+    }
+
+    public void setSpawnableOnly(boolean spawnableOnly) {
+        this.spawnableOnly = spawnableOnly;
+    }
+
+    public boolean isShowMetrics() {
+        return showMetrics;
+    }
+
+    public void setShowMetrics(boolean showMetrics) {
+        this.showMetrics = showMetrics;
+    }
+
+    public int[] getOverlayBlocks() {
+        return overlayBlocks;
+    }
+
+    public void setOverlayBlocks(int[] overlayBlocks) {
+        this.overlayBlocks = overlayBlocks;
+    }
+
     public Renderer getRenderer() {
         return renderer;
     }
@@ -2,6 +2,7 @@ package cc.apoc.lloverlay;
 
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.RenderGlobal;
+import net.minecraftforge.client.event.RenderGameOverlayEvent;
 import net.minecraftforge.client.event.RenderWorldLastEvent;
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.event.ForgeSubscribe;
@@ -17,7 +18,7 @@ public class LightLevelOverlayForgeMod {
 
     @EventHandler
     public void initialize(FMLInitializationEvent evt) {
-        LightLevelOverlay.getInstance();
+        LightLevelOverlay.getInstance().setHudInGameOverlay(true);
 
         MinecraftForge.EVENT_BUS.register(this);
     }
@@ -27,4 +28,11 @@ public class LightLevelOverlayForgeMod {
 	    RenderGlobal renderGlobal = Minecraft.getMinecraft().renderGlobal;
 		LightLevelOverlay.getInstance().render(renderGlobal.globalRenderBlocks, evt.partialTicks);
 	}
+	
+	@ForgeSubscribe
+	public void renderGameOverlayEvent(RenderGameOverlayEvent.Post evt) {
+	    if (evt.type == RenderGameOverlayEvent.ElementType.ALL) {
+	        LightLevelOverlay.getInstance().renderHud();
+	    }
+	}
 }
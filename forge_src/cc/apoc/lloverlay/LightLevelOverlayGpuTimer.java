@@ -0,0 +1,102 @@
+package cc.apoc.lloverlay;
+
+import org.lwjgl.opengl.ARBTimerQuery;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.EXTTimerQuery;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.opengl.GLContext;
+
+/**
+ * Measures the GPU time of the overlay draws with timer queries.
+ *
+ * The queries are kept in a ring and only read once the result is
+ * available, a few frames later, so the render thread never waits for the
+ * GPU. When every query of the ring is still pending the frame is not
+ * measured. Without OpenGL 3.3, ARB_timer_query or EXT_timer_query and
+ * while the metrics are disabled begin() and end() do nothing. Results of
+ * queries begun before the metrics were disabled or enabled again are
+ * dropped.
+ *
+ * Only used by the render thread, needs the context when created.
+ */
+class LightLevelOverlayGpuTimer {
+    private static final int QUERIES = 4;
+
+    private LightLevelOverlayMetrics metrics;
+
+    private boolean supported;
+    // use the core function of OpenGL 3.3 or the one of EXT_timer_query
+    // instead of ARB_timer_query
+    private boolean core;
+    private boolean ext;
+
+    private int[] queries;
+    // metrics epoch of every query when it began
+    private int[] epochs;
+    // next query to begin and oldest pending query
+    private int next = 0;
+    private int oldest = 0;
+    private int pending = 0;
+    private boolean running = false;
+
+    public LightLevelOverlayGpuTimer(LightLevelOverlayMetrics metrics) {
+        this.metrics = metrics;
+        ContextCapabilities caps = GLContext.getCapabilities();
+        supported = caps.OpenGL33 || caps.GL_ARB_timer_query || caps.GL_EXT_timer_query;
+        core = caps.OpenGL33;
+        ext = !caps.OpenGL33 && !caps.GL_ARB_timer_query;
+    }
+
+    /**
+     * Starts measuring the draws of this frame, if a query is free.
+     */
+    public void begin() {
+        if (!supported || !metrics.isEnabled()) return;
+        if (queries == null) {
+            queries = new int[QUERIES];
+            epochs = new int[QUERIES];
+            for (int i = 0; i < QUERIES; i++) {
+                queries[i] = GL15.glGenQueries();
+            }
+        }
+        collect();
+        if (pending == QUERIES) return;
+
+        epochs[next] = metrics.getEpoch();
+        GL15.glBeginQuery(GL33.GL_TIME_ELAPSED, queries[next]);
+        running = true;
+    }
+
+    public void end() {
+        if (!running) return;
+        GL15.glEndQuery(GL33.GL_TIME_ELAPSED);
+        running = false;
+        next = (next + 1) % QUERIES;
+        pending++;
+    }
+
+    /**
+     * Records the results that are available, oldest first.
+     */
+    private void collect() {
+        while (pending > 0) {
+            int query = queries[oldest];
+            if (GL15.glGetQueryObjecti(query, GL15.GL_QUERY_RESULT_AVAILABLE) == GL11.GL_FALSE) break;
+
+            long nanos;
+            if (core)
+                nanos = GL33.glGetQueryObjectui64(query, GL15.GL_QUERY_RESULT);
+            else if (ext)
+                nanos = EXTTimerQuery.glGetQueryObjectuEXT(query, GL15.GL_QUERY_RESULT);
+            else
+                nanos = ARBTimerQuery.glGetQueryObjectui64(query, GL15.GL_QUERY_RESULT);
+            if (epochs[oldest] == metrics.getEpoch())
+                metrics.gpuTime.record(nanos);
+
+            oldest = (oldest + 1) % QUERIES;
+            pending--;
+        }
+    }
+}
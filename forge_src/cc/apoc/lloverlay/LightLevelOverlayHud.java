@@ -0,0 +1,89 @@
+package cc.apoc.lloverlay;
+
+import java.util.Locale;
+
+import org.lwjgl.opengl.GL11;
+
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.gui.FontRenderer;
+import net.minecraft.client.gui.ScaledResolution;
+
+/**
+ * Panel in the top left corner with the metrics.
+ *
+ * Forge draws it after the in-game GUI, the vanilla hook only has the
+ * world render where it is drawn after the overlays. Fog, blending and
+ * depth test of the world render are set for the text and restored.
+ *
+ * The lines are only formatted again twice a second.
+ */
+class LightLevelOverlayHud {
+    private static final long REFRESH_INTERVAL = 500;
+
+    private LightLevelOverlayMetrics metrics;
+
+    private String[] lines = new String[0];
+    private long lastRefresh;
+
+    public LightLevelOverlayHud(LightLevelOverlayMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void render(Minecraft mc, long frameTime) {
+        if (frameTime - lastRefresh >= REFRESH_INTERVAL) {
+            lastRefresh = frameTime;
+            lines = format();
+        }
+
+        ScaledResolution resolution = new ScaledResolution(mc.gameSettings, mc.displayWidth, mc.displayHeight);
+
+        // 2d projection like EntityRenderer.setupOverlayRendering()
+        GL11.glMatrixMode(GL11.GL_PROJECTION);
+        GL11.glPushMatrix();
+        GL11.glLoadIdentity();
+        GL11.glOrtho(0.0D, resolution.getScaledWidth_double(), resolution.getScaledHeight_double(), 0.0D, 1000.0D, 3000.0D);
+        GL11.glMatrixMode(GL11.GL_MODELVIEW);
+        GL11.glPushMatrix();
+        GL11.glLoadIdentity();
+        GL11.glTranslatef(0.0F, 0.0F, -2000.0F);
+        GL11.glPushAttrib(GL11.GL_ENABLE_BIT | GL11.GL_COLOR_BUFFER_BIT);
+        GL11.glDisable(GL11.GL_DEPTH_TEST);
+        GL11.glDisable(GL11.GL_FOG);
+        GL11.glEnable(GL11.GL_BLEND);
+        GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
+        GL11.glColor4f(1.0F, 1.0F, 1.0F, 1.0F);
+
+        FontRenderer font = mc.fontRenderer;
+        for (int i = 0; i < lines.length; i++) {
+            font.drawStringWithShadow(lines[i], 2, 2 + i * (font.FONT_HEIGHT + 1), 0xffffff);
+        }
+
+        GL11.glPopAttrib();
+        GL11.glPopMatrix();
+        GL11.glMatrixMode(GL11.GL_PROJECTION);
+        GL11.glPopMatrix();
+        GL11.glMatrixMode(GL11.GL_MODELVIEW);
+    }
+
+    private String[] format() {
+        LightLevelOverlayMetrics.Histogram pass = metrics.passTime;
+        LightLevelOverlayMetrics.Histogram frame = metrics.frameTime;
+        LightLevelOverlayMetrics.Histogram upload = metrics.uploadTime;
+        LightLevelOverlayMetrics.Histogram gpu = metrics.gpuTime;
+        return new String[] {
+            String.format(Locale.ROOT, "lloverlay render %.2fms p95 %.2fms max %.2fms",
+                    frame.getMeanMillis(), frame.getPercentileMillis(0.95), frame.getMaxMillis()),
+            gpu.getCount() == 0 ? "gpu n/a" : String.format(Locale.ROOT, "gpu %.2fms p95 %.2fms max %.2fms",
+                    gpu.getMeanMillis(), gpu.getPercentileMillis(0.95), gpu.getMaxMillis()),
+            String.format(Locale.ROOT, "pass %.1fms p95 %.1fms max %.1fms (%d passes)",
+                    pass.getMeanMillis(), pass.getPercentileMillis(0.95), pass.getMaxMillis(), metrics.passes.get()),
+            String.format(Locale.ROOT, "%d chunks, %d sections scanned, %d reused",
+                    metrics.chunksScanned.get(), metrics.sectionsScanned.get(), metrics.sectionsReused.get()),
+            String.format(Locale.ROOT, "%d blocks scanned, %d overlays emitted",
+                    metrics.blocksScanned.get(), metrics.overlays.get()),
+            String.format(Locale.ROOT, "upload %.2fms p95 %.2fms, %d chunks, %d KB",
+                    upload.getMeanMillis(), upload.getPercentileMillis(0.95), metrics.uploads.get(),
+                    metrics.uploadBytes.get() / 1024),
+        };
+    }
+}
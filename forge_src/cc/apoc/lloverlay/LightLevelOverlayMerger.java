@@ -0,0 +1,88 @@
+package cc.apoc.lloverlay;
+
+import java.util.Arrays;
+
+/**
+ * Merges the overlays of a chunk into larger quads of a single colour.
+ *
+ * Far away the digits can't be read anyway, so overlays at the same height
+ * are only told apart by their band: red below light level 8, where mobs
+ * spawn, and green from 8 up. Adjacent overlays of a band are merged
+ * greedily into rectangles, row by row.
+ *
+ * Only used by the generation thread.
+ */
+class LightLevelOverlayMerger {
+    // texture row with a solid colour per light level
+    private static final int COLOUR_ROW = 2;
+    // first light level of the green band
+    private static final int BAND_LEVEL = 8;
+
+    private static final int HEIGHT_UNITS = 64;
+
+    // sort keys of the overlays: y, height, band, z, x
+    private long[] keys = new long[256];
+    // overlays of the current group not merged yet, by z << 4 | x
+    private boolean[] cells = new boolean[256];
+
+    /**
+     * Passes the overlays of the chunk to the renderer as merged overlays.
+     */
+    public void render(LightLevelOverlayRenderer renderer, int chunkX, int chunkZ,
+            int[] x, int[] y, int[] z, double[] blockHeight, int[] tex, int size) {
+        if (keys.length < size) {
+            keys = new long[Math.max(size, keys.length * 2)];
+        }
+        for (int i = 0; i < size; i++) {
+            long units = Math.round(blockHeight[i] * HEIGHT_UNITS);
+            long band = (tex[i] & 15) >= BAND_LEVEL ? 1 : 0;
+            keys[i] = (long) y[i] << 16 | units << 9 | band << 8 | (z[i] & 15) << 4 | (x[i] & 15);
+        }
+        Arrays.sort(keys, 0, size);
+
+        int worldX = chunkX << 4;
+        int worldZ = chunkZ << 4;
+        for (int start = 0; start < size;) {
+            // overlays with the same y, height and band
+            long group = keys[start] >>> 8;
+            int end = start;
+            while (end < size && keys[end] >>> 8 == group) {
+                cells[(int) keys[end] & 255] = true;
+                end++;
+            }
+
+            int overlayY = (int) (group >>> 8);
+            double height = (double) ((group >>> 1) & 127) / HEIGHT_UNITS;
+            int overlayTex = COLOUR_ROW * 16 + ((group & 1) != 0 ? BAND_LEVEL : 0);
+
+            // in z, x order every cell still set is the corner of a new rectangle
+            for (int i = start; i < end; i++) {
+                int cell = (int) keys[i] & 255;
+                if (!cells[cell]) continue;
+                int cellX = cell & 15;
+                int cellZ = cell >> 4;
+
+                int sizeX = 1;
+                while (cellX + sizeX < 16 && cells[cell + sizeX]) {
+                    sizeX++;
+                }
+                int sizeZ = 1;
+                while (cellZ + sizeZ < 16 && isRowSet(cell + sizeZ * 16, sizeX)) {
+                    sizeZ++;
+                }
+                for (int row = 0; row < sizeZ; row++) {
+                    Arrays.fill(cells, cell + row * 16, cell + row * 16 + sizeX, false);
+                }
+                renderer.addMergedOverlay(worldX | cellX, overlayY, worldZ | cellZ, sizeX, sizeZ, height, overlayTex);
+            }
+            start = end;
+        }
+    }
+
+    private boolean isRowSet(int cell, int length) {
+        for (int i = cell; i < cell + length; i++) {
+            if (!cells[i]) return false;
+        }
+        return true;
+    }
+}
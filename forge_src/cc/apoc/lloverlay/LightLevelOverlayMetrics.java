@@ -0,0 +1,172 @@
+package cc.apoc.lloverlay;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and timing histograms of the generation thread, the workers and
+ * the render thread.
+ *
+ * Recording is only done while enabled and never allocates, every counter
+ * and bucket is a preallocated atomic, so it can be left on while the
+ * numbers are looked at. Shown by LightLevelOverlayHud, exported with
+ * writeCsv().
+ */
+class LightLevelOverlayMetrics {
+    private static final LightLevelOverlayMetrics instance = new LightLevelOverlayMetrics();
+
+    public static LightLevelOverlayMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sum of the recorded values.
+     */
+    public class Counter {
+        public final String name;
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter(String name) {
+            this.name = name;
+            counters.add(this);
+        }
+
+        public void add(long delta) {
+            if (enabled) value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Durations in buckets of powers of two microseconds, bucket i counts
+     * durations below 2^i microseconds.
+     */
+    public class Histogram {
+        private static final int BUCKETS = 32;
+
+        public final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram(String name) {
+            this.name = name;
+            histograms.add(this);
+        }
+
+        public void record(long nanos) {
+            if (!enabled) return;
+            long micros = Math.max(0, nanos / 1000);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+            count.incrementAndGet();
+            total.addAndGet(micros);
+            long current;
+            while (micros > (current = max.get()) && !max.compareAndSet(current, micros));
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getMeanMillis() {
+            long n = count.get();
+            return n == 0 ? 0 : total.get() / 1000.0 / n;
+        }
+
+        public double getMaxMillis() {
+            return max.get() / 1000.0;
+        }
+
+        /**
+         * Upper bound of the bucket the percentile falls into.
+         */
+        public double getPercentileMillis(double percentile) {
+            long n = count.get();
+            if (n == 0) return 0;
+            long rank = (long) Math.ceil(n * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(1L << i, max.get()) / 1000.0;
+                }
+            }
+            return getMaxMillis();
+        }
+    }
+
+    private volatile boolean enabled = false;
+    // counts the changes of enabled, measurements that span a change are dropped
+    private volatile int epoch = 0;
+
+    private final List<Counter> counters = new ArrayList<Counter>();
+    private final List<Histogram> histograms = new ArrayList<Histogram>();
+
+    // generation thread and workers
+    public final Histogram passTime = new Histogram("pass time");
+    public final Counter passes = new Counter("passes");
+    public final Counter chunksScanned = new Counter("chunks scanned");
+    public final Counter sectionsScanned = new Counter("sections scanned");
+    public final Counter sectionsReused = new Counter("sections reused");
+    public final Counter blocksScanned = new Counter("blocks scanned");
+    public final Counter overlays = new Counter("overlays emitted");
+
+    // render thread
+    public final Histogram frameTime = new Histogram("render time");
+    // the draws on the GPU, measured by LightLevelOverlayGpuTimer
+    public final Histogram gpuTime = new Histogram("gpu time");
+    public final Histogram uploadTime = new Histogram("upload time");
+    public final Counter uploads = new Counter("chunks uploaded");
+    public final Counter uploadBytes = new Counter("bytes uploaded");
+
+    private LightLevelOverlayMetrics() {
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        if (enabled != this.enabled) {
+            epoch++;
+        }
+        this.enabled = enabled;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Writes every counter and histogram as a line, durations in milliseconds.
+     */
+    public void writeCsv(File file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("name,count,mean,p50,p95,p99,max");
+            for (Counter counter : counters) {
+                out.printf("%s,%d,,,,,\n", counter.name, counter.get());
+            }
+            for (Histogram histogram : histograms) {
+                out.printf(Locale.ROOT, "%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f\n", histogram.name,
+                        histogram.getCount(), histogram.getMeanMillis(), histogram.getPercentileMillis(0.5),
+                        histogram.getPercentileMillis(0.95), histogram.getPercentileMillis(0.99),
+                        histogram.getMaxMillis());
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+}
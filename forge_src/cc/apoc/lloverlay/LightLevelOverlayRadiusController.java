@@ -0,0 +1,116 @@
+package cc.apoc.lloverlay;
+
+/**
+ * Picks the radius the overlays are generated and drawn in, drawChunks of
+ * the config or, in the auto mode, the largest radius between
+ * minDrawChunks and maxDrawChunks that keeps the render time per frame and
+ * the time of a full generation pass within their targets.
+ *
+ * Both costs grow with the area, (2r+1)^2 chunks. The radius shrinks by a
+ * chunk as soon as a cost is above its target, but only grows by a chunk
+ * when the costs estimated for the larger radius stay below GROW_MARGIN of
+ * the targets. Together with the cooldown after every change, that lets
+ * the averages settle at the new radius, it does not oscillate between
+ * two radii.
+ *
+ * frameRendered() is called by the render thread, passFinished() by the
+ * generation thread.
+ */
+class LightLevelOverlayRadiusController {
+    private static final double GROW_MARGIN = 0.75;
+    private static final long COOLDOWN = 5000;
+    // weight of a frame in the average render time
+    private static final double FRAME_SMOOTHING = 0.05;
+    // weight of a pass in the average time per chunk
+    private static final double PASS_SMOOTHING = 0.3;
+    // passes that generated fewer chunks say little about the time per chunk
+    private static final int MIN_PASS_CHUNKS = 4;
+
+    private LightLevelOverlayConfig config;
+
+    private volatile int radius;
+    private long lastChange;
+    // average render time per frame in ns
+    private double renderTime = 0;
+    // average generation time per chunk in ns, written by the generation thread
+    private volatile double chunkTime = 0;
+
+    public LightLevelOverlayRadiusController(LightLevelOverlayConfig config) {
+        this.config = config;
+        radius = clamp(config.getDrawChunks());
+    }
+
+    /**
+     * Radius of the overlays in chunks around the player.
+     */
+    public int getRadius() {
+        return config.isAutoDrawChunks() ? radius : config.getDrawChunks();
+    }
+
+    /**
+     * Records the time of a generation pass.
+     */
+    public void passFinished(long nanos, int generatedChunks) {
+        if (generatedChunks < MIN_PASS_CHUNKS) return;
+        double perChunk = (double) nanos / generatedChunks;
+        chunkTime = chunkTime == 0 ? perChunk : chunkTime + (perChunk - chunkTime) * PASS_SMOOTHING;
+    }
+
+    /**
+     * Records the render time of a frame and adjusts the radius.
+     *
+     * @return true if the radius changed and the overlays need to be generated
+     */
+    public boolean frameRendered(long nanos, long frameTime) {
+        if (!config.isAutoDrawChunks()) return false;
+
+        // the bounds may have been changed
+        if (radius != clamp(radius)) {
+            return changeRadius(clamp(radius), frameTime);
+        }
+
+        renderTime = renderTime == 0 ? nanos : renderTime + (nanos - renderTime) * FRAME_SMOOTHING;
+        if (frameTime - lastChange < COOLDOWN) return false;
+
+        double renderTarget = config.getRenderTimeTarget() * 1000000.0;
+        double passTarget = config.getPassTimeTarget() * 1000000.0;
+        double passTime = chunkTime * getArea(radius);
+
+        if (renderTime > renderTarget || passTime > passTarget) {
+            return changeRadius(clamp(radius - 1), frameTime);
+        }
+
+        double growth = (double) getArea(radius + 1) / getArea(radius);
+        if (chunkTime > 0 &&
+            renderTime * growth < renderTarget * GROW_MARGIN &&
+            passTime * growth < passTarget * GROW_MARGIN) {
+            return changeRadius(clamp(radius + 1), frameTime);
+        }
+        return false;
+    }
+
+    private boolean changeRadius(int newRadius, long frameTime) {
+        if (newRadius == radius) return false;
+        debugMessage("auto radius %d -> %d (render %.2fms, chunk %.2fms)", radius, newRadius,
+                renderTime / 1000000.0, chunkTime / 1000000.0);
+        radius = newRadius;
+        lastChange = frameTime;
+        return true;
+    }
+
+    private int clamp(int radius) {
+        int min = Math.max(0, config.getMinDrawChunks());
+        return Math.max(min, Math.min(Math.max(min, config.getMaxDrawChunks()), radius));
+    }
+
+    private static int getArea(int radius) {
+        return (2 * radius + 1) * (2 * radius + 1);
+    }
+
+    private void debugMessage(String fmt, Object... args) {
+        if (config.isDebug()) {
+            String message = String.format(fmt, args);
+            System.err.printf("[LightLevelOverlay] %s\n", message);
+        }
+    }
+}
@@ -4,8 +4,25 @@ public interface LightLevelOverlayRenderer {
     
     public void clear();
     
+    /**
+     * Replaces the overlays of a chunk, startChunk() is followed by
+     * addOverlay() for every overlay of the chunk and stopChunk().
+     */
+    public void startChunk(int chunkX, int chunkZ);
     public void addOverlay(int x, int y, int z, double blockHeight, int tex);
+    /**
+     * Overlay covering sizeX * sizeZ blocks in the colour of the center
+     * of the texture cell, for chunks too far away to read the digits.
+     */
+    public void addMergedOverlay(int x, int y, int z, int sizeX, int sizeZ, double blockHeight, int tex);
+    public void stopChunk();
     
+    public void removeChunk(int chunkX, int chunkZ);
+    
+    /**
+     * Chunks changed between startGenerate() and stopGenerate() are
+     * visible to render() all at once after stopGenerate().
+     */
     public void startGenerate();
     public void stopGenerate();
     
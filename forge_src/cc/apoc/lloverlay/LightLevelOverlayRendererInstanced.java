@@ -0,0 +1,484 @@
+package cc.apoc.lloverlay;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.lwjgl.opengl.ARBDrawInstanced;
+import org.lwjgl.opengl.ARBInstancedArrays;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.opengl.GLContext;
+
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.culling.Frustrum;
+import net.minecraft.util.ResourceLocation;
+import net.minecraft.world.ChunkCoordIntPair;
+
+/**
+ * Renders the overlays with a single instanced draw per chunk.
+ *
+ * Every overlay is one 8 byte instance record of 4 unsigned shorts: x and z
+ * relative to the chunk, the height of the surface in 1/64 blocks and the
+ * texture index. The vertex shader builds the quad from the record and one
+ * of 4 corners of a static vertex buffer. Merged overlays keep their size
+ * minus one above the 4 bits of x and z and set MERGED in the texture index,
+ * the shader then samples the center of the cell.
+ *
+ * Needs OpenGL 2.0 with ARB_instanced_arrays and ARB_draw_instanced (or
+ * OpenGL 3.3), see isSupported(). Mesa provides both in software rendering
+ * (LIBGL_ALWAYS_SOFTWARE=1), the shaders only use GLSL 1.10.
+ */
+public class LightLevelOverlayRendererInstanced implements LightLevelOverlayRenderer {
+
+    // shorts per instance (x, y, z, tex)
+    private static final int INSTANCE_SHORTS = 4;
+    private static final int INSTANCE_STRIDE = INSTANCE_SHORTS * 2;
+
+    // scale of the surface height
+    private static final int POSITION_UNITS = 64;
+    // texture index flag of merged overlays
+    private static final int MERGED = 256;
+
+    private static final int ATTRIB_CORNER = 0;
+    private static final int ATTRIB_OVERLAY = 1;
+
+    private static final String VERTEX_SHADER =
+        "#version 110\n" +
+        "attribute vec2 corner;\n" +
+        "attribute vec4 overlay;\n" +
+        "uniform vec3 chunkOffset;\n" +
+        "void main() {\n" +
+        "    vec2 origin = mod(overlay.xz, 16.0);\n" +
+        "    vec2 size = floor(overlay.xz / 16.0) + 1.0;\n" +
+        "    vec3 position = vec3(origin.x + corner.x * size.x, overlay.y / " + POSITION_UNITS + ".0, origin.y + corner.y * size.y);\n" +
+        "    float merged = floor(overlay.w / " + MERGED + ".0);\n" +
+        "    float tex = mod(overlay.w, " + MERGED + ".0);\n" +
+        "    vec2 cell = vec2(mod(tex, 16.0), floor(tex / 16.0));\n" +
+        "    gl_TexCoord[0] = vec4((cell * 16.0 + mix(corner * 15.99, vec2(8.0), merged)) / 256.0, 0.0, 1.0);\n" +
+        "    gl_FrontColor = gl_Color;\n" +
+        "    gl_Position = gl_ModelViewProjectionMatrix * vec4(position + chunkOffset, 1.0);\n" +
+        "}\n";
+
+    private static final String FRAGMENT_SHADER =
+        "#version 110\n" +
+        "uniform sampler2D overlayTexture;\n" +
+        "void main() {\n" +
+        "    gl_FragColor = texture2D(overlayTexture, gl_TexCoord[0].st) * gl_Color;\n" +
+        "}\n";
+
+    /**
+     * Instance buffer with the overlays of one chunk, only used by the render thread.
+     */
+    private static class Region {
+        public final int chunkX;
+        public final int chunkZ;
+        public int bufferId = 0;
+        // instances in the buffer object
+        public int instances = 0;
+        // instance data of the snapshot, uploaded unless queued
+        public short[] data;
+        // height of the lowest and highest overlay, for culling
+        public double minY;
+        public double maxY;
+        public boolean queued = false;
+        public boolean removed = false;
+
+        public Region(long key) {
+            chunkX = (int) key;
+            chunkZ = (int) (key >> 32);
+        }
+    }
+
+    private ResourceLocation textureLocation;
+
+    private LightLevelOverlayConfig config;
+
+    // use the core functions of OpenGL 3.3 instead of the extensions
+    private boolean core;
+
+    private int program;
+    private int chunkOffsetLocation;
+    // the 4 corners of a quad, two triangles as a fan
+    private int cornerBufferId;
+
+    // instance records of the chunk currently generated
+    private short[] instanceArray = new short[256 * INSTANCE_SHORTS];
+    private int instanceArrayIndex = 0;
+
+    // replaces the instance data of the chunks, only used by the render thread
+    private LightLevelOverlayBufferUpload bufferUpload;
+
+    // GPU time of the draws
+    private LightLevelOverlayGpuTimer gpuTimer;
+
+    // view frustum of the frame, created on the first frame
+    private Frustrum frustrum;
+
+    // instance data by chunk coordinates, only used by the generation thread
+    private Map<Long, short[]> chunks = new HashMap<Long, short[]>();
+    private long chunkKey;
+    private int chunkBlockX;
+    private int chunkBlockZ;
+
+    // immutable copy of the chunks, published by stopGenerate() and
+    // picked up by the render thread without locking
+    private volatile Map<Long, short[]> snapshot = Collections.emptyMap();
+
+    // the render thread keeps a region per chunk of the snapshot
+    private Map<Long, short[]> renderedSnapshot = Collections.emptyMap();
+    private Map<Long, Region> regions = new HashMap<Long, Region>();
+    // regions waiting for upload, uploaded over several frames
+    private List<Region> uploadQueue = new LinkedList<Region>();
+
+    /**
+     * Checks if the current context can run this renderer.
+     */
+    public static boolean isSupported() {
+        ContextCapabilities caps = GLContext.getCapabilities();
+        return caps.OpenGL20 && (caps.OpenGL33 || (caps.GL_ARB_instanced_arrays && caps.GL_ARB_draw_instanced));
+    }
+
+    /**
+     * Compiles the shaders, must be called from the render thread.
+     *
+     * @throws RuntimeException if the shaders can't be compiled or linked
+     */
+    public LightLevelOverlayRendererInstanced(LightLevelOverlayConfig config) {
+        this.config = config;
+
+        String domain = "minecraft";
+        if (config.isForge()) domain = "lloverlay";
+        textureLocation = new ResourceLocation(domain + ":textures/lightlevel.png");
+
+        core = GLContext.getCapabilities().OpenGL33;
+
+        program = createProgram();
+        chunkOffsetLocation = GL20.glGetUniformLocation(program, "chunkOffset");
+        GL20.glUseProgram(program);
+        GL20.glUniform1i(GL20.glGetUniformLocation(program, "overlayTexture"), 0);
+        GL20.glUseProgram(0);
+
+        FloatBuffer corners = ByteBuffer.allocateDirect(8 * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        corners.put(new float[] { 1, 1,  1, 0,  0, 0,  0, 1 });
+        corners.flip();
+        cornerBufferId = GL15.glGenBuffers();
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, cornerBufferId);
+        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, corners, GL15.GL_STATIC_DRAW);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+
+        bufferUpload = new LightLevelOverlayBufferUpload();
+        gpuTimer = new LightLevelOverlayGpuTimer(LightLevelOverlayMetrics.getInstance());
+    }
+
+    private int createProgram() {
+        int vertexShader = createShader(GL20.GL_VERTEX_SHADER, "vertex", VERTEX_SHADER);
+        int fragmentShader;
+        try {
+            fragmentShader = createShader(GL20.GL_FRAGMENT_SHADER, "fragment", FRAGMENT_SHADER);
+        }
+        catch (RuntimeException e) {
+            GL20.glDeleteShader(vertexShader);
+            throw e;
+        }
+
+        int program = GL20.glCreateProgram();
+        GL20.glAttachShader(program, vertexShader);
+        GL20.glAttachShader(program, fragmentShader);
+        GL20.glBindAttribLocation(program, ATTRIB_CORNER, "corner");
+        GL20.glBindAttribLocation(program, ATTRIB_OVERLAY, "overlay");
+        GL20.glLinkProgram(program);
+        GL20.glDeleteShader(vertexShader);
+        GL20.glDeleteShader(fragmentShader);
+
+        String log = GL20.glGetProgramInfoLog(program, 4096).trim();
+        if (GL20.glGetProgrami(program, GL20.GL_LINK_STATUS) == GL11.GL_FALSE) {
+            GL20.glDeleteProgram(program);
+            throw new RuntimeException("unable to link the overlay shaders: " + log);
+        }
+        // warnings of the driver
+        if (log.length() > 0) {
+            debugMessage("overlay shaders linked: %s", log);
+        }
+        return program;
+    }
+
+    private int createShader(int type, String name, String source) {
+        int shader = GL20.glCreateShader(type);
+        GL20.glShaderSource(shader, source);
+        GL20.glCompileShader(shader);
+
+        String log = GL20.glGetShaderInfoLog(shader, 4096).trim();
+        if (GL20.glGetShaderi(shader, GL20.GL_COMPILE_STATUS) == GL11.GL_FALSE) {
+            GL20.glDeleteShader(shader);
+            throw new RuntimeException("unable to compile the " + name + " shader: " + log);
+        }
+        if (log.length() > 0) {
+            debugMessage("%s shader compiled: %s", name, log);
+        }
+        return shader;
+    }
+
+    public void clear() {
+        snapshot = Collections.emptyMap();
+    }
+
+    public void startChunk(int chunkX, int chunkZ) {
+        chunkKey = ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ);
+        chunkBlockX = chunkX << 4;
+        chunkBlockZ = chunkZ << 4;
+        instanceArrayIndex = 0;
+    }
+
+    public void addOverlay(int x, int y, int z, double blockHeight, int tex) {
+        if (instanceArrayIndex + INSTANCE_SHORTS > instanceArray.length) {
+            instanceArray = Arrays.copyOf(instanceArray, instanceArray.length * 2);
+        }
+        instanceArray[instanceArrayIndex++] = (short) (x - chunkBlockX);
+        instanceArray[instanceArrayIndex++] = (short) Math.round((y + blockHeight + 0.014) * POSITION_UNITS);
+        instanceArray[instanceArrayIndex++] = (short) (z - chunkBlockZ);
+        instanceArray[instanceArrayIndex++] = (short) tex;
+    }
+
+    public void addMergedOverlay(int x, int y, int z, int sizeX, int sizeZ, double blockHeight, int tex) {
+        if (instanceArrayIndex + INSTANCE_SHORTS > instanceArray.length) {
+            instanceArray = Arrays.copyOf(instanceArray, instanceArray.length * 2);
+        }
+        instanceArray[instanceArrayIndex++] = (short) ((x - chunkBlockX) | (sizeX - 1) << 4);
+        instanceArray[instanceArrayIndex++] = (short) Math.round((y + blockHeight + 0.014) * POSITION_UNITS);
+        instanceArray[instanceArrayIndex++] = (short) ((z - chunkBlockZ) | (sizeZ - 1) << 4);
+        instanceArray[instanceArrayIndex++] = (short) (tex | MERGED);
+    }
+
+    public void stopChunk() {
+        chunks.put(chunkKey, Arrays.copyOf(instanceArray, instanceArrayIndex));
+    }
+
+    public void removeChunk(int chunkX, int chunkZ) {
+        chunks.remove(ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ));
+    }
+
+    public void startGenerate() {
+    }
+
+    /**
+     * Publishes the instance data of all chunks to the render thread.
+     */
+    public void stopGenerate() {
+        snapshot = Collections.unmodifiableMap(new HashMap<Long, short[]>(chunks));
+    }
+
+    /**
+     * Compares the latest snapshot with the one the regions were created for,
+     * queues the regions of changed chunks for upload and deletes the buffers
+     * of removed chunks.
+     */
+    private void updateRegions() {
+        Map<Long, short[]> current = snapshot;
+        if (current == renderedSnapshot) return;
+
+        for (Iterator<Map.Entry<Long, Region>> it = regions.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Long, Region> entry = it.next();
+            if (!current.containsKey(entry.getKey())) {
+                Region region = entry.getValue();
+                if (region.bufferId != 0) {
+                    GL15.glDeleteBuffers(region.bufferId);
+                }
+                region.removed = true;
+                it.remove();
+            }
+        }
+
+        for (Map.Entry<Long, short[]> entry : current.entrySet()) {
+            Region region = regions.get(entry.getKey());
+            if (region == null) {
+                region = new Region(entry.getKey());
+                regions.put(entry.getKey(), region);
+            }
+            else if (region.data == entry.getValue()) {
+                continue;
+            }
+            region.data = entry.getValue();
+            if (!region.queued) {
+                region.queued = true;
+                uploadQueue.add(region);
+            }
+        }
+        renderedSnapshot = current;
+    }
+
+    /**
+     * Uploads queued regions until the byte budget of this frame is used up,
+     * the remaining regions are uploaded in the next frames.
+     */
+    private void uploadBuffers() {
+        if (uploadQueue.isEmpty()) return;
+
+        long tStart = System.currentTimeMillis();
+        long uploadStart = System.nanoTime();
+        int budget = config.getUploadBudget() * 1024;
+        int bytes = 0;
+        int uploads = 0;
+
+        for (Iterator<Region> it = uploadQueue.iterator(); it.hasNext() && (bytes < budget || uploads == 0);) {
+            Region region = it.next();
+            it.remove();
+            region.queued = false;
+            if (region.removed) continue;
+
+            if (region.bufferId == 0) {
+                region.bufferId = GL15.glGenBuffers();
+            }
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, region.bufferId);
+            bufferUpload.upload(GL15.GL_ARRAY_BUFFER, region.data);
+
+            updateBounds(region);
+            region.instances = region.data.length / INSTANCE_SHORTS;
+            bytes += region.data.length * 2;
+            uploads++;
+        }
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+
+        LightLevelOverlayMetrics metrics = LightLevelOverlayMetrics.getInstance();
+        metrics.uploadTime.record(System.nanoTime() - uploadStart);
+        metrics.uploads.add(uploads);
+        metrics.uploadBytes.add(bytes);
+
+        debugMessage("instance upload took %dms for %d regions (%d bytes), %d regions queued.",
+                System.currentTimeMillis() - tStart, uploads, bytes, uploadQueue.size());
+    }
+
+    private void setDivisor(int index, int divisor) {
+        if (core)
+            GL33.glVertexAttribDivisor(index, divisor);
+        else
+            ARBInstancedArrays.glVertexAttribDivisorARB(index, divisor);
+    }
+
+    private boolean isVisible(Frustrum frustrum, Region region) {
+        double minX = region.chunkX << 4;
+        double minZ = region.chunkZ << 4;
+        return frustrum.isBoxInFrustum(minX, region.minY, minZ, minX + 16, region.maxY, minZ + 16);
+    }
+
+    /**
+     * Height range of the overlays of the region in blocks.
+     */
+    private void updateBounds(Region region) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 1; i < region.data.length; i += INSTANCE_SHORTS) {
+            min = Math.min(min, region.data[i]);
+            max = Math.max(max, region.data[i]);
+        }
+        region.minY = (double) min / POSITION_UNITS;
+        region.maxY = (double) max / POSITION_UNITS;
+    }
+
+    private void renderInstanced(double x, double y, double z) {
+        GL20.glUseProgram(program);
+
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, cornerBufferId);
+        GL20.glEnableVertexAttribArray(ATTRIB_CORNER);
+        GL20.glVertexAttribPointer(ATTRIB_CORNER, 2, GL11.GL_FLOAT, false, 8, 0);
+
+        GL20.glEnableVertexAttribArray(ATTRIB_OVERLAY);
+        setDivisor(ATTRIB_OVERLAY, 1);
+
+        // the clipping planes are shared with the world render, which
+        // updates them every frame, only the camera position is set
+        if (frustrum == null) {
+            frustrum = new Frustrum();
+        }
+        frustrum.setPosition(x, y, z);
+
+        for (Region region : regions.values()) {
+            if (region.instances == 0 || !isVisible(frustrum, region)) continue;
+
+            // chunk origin relative to the player
+            GL20.glUniform3f(chunkOffsetLocation,
+                    (float) ((region.chunkX << 4) - x), (float) -y, (float) ((region.chunkZ << 4) - z));
+
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, region.bufferId);
+            GL20.glVertexAttribPointer(ATTRIB_OVERLAY, 4, GL11.GL_UNSIGNED_SHORT, false, INSTANCE_STRIDE, 0);
+
+            if (core)
+                GL31.glDrawArraysInstanced(GL11.GL_TRIANGLE_FAN, 0, 4, region.instances);
+            else
+                ARBDrawInstanced.glDrawArraysInstancedARB(GL11.GL_TRIANGLE_FAN, 0, 4, region.instances);
+        }
+
+        setDivisor(ATTRIB_OVERLAY, 0);
+        GL20.glDisableVertexAttribArray(ATTRIB_OVERLAY);
+        GL20.glDisableVertexAttribArray(ATTRIB_CORNER);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+
+        GL20.glUseProgram(0);
+    }
+
+    public int getCacheSize() {
+        int shorts = 0;
+        for (short[] data : snapshot.values()) {
+            shorts += data.length;
+        }
+        return shorts / INSTANCE_SHORTS;
+    }
+
+    /**
+     * Render overlays, translated by client player position.
+     *
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void render(double x, double y, double z) {
+        updateRegions();
+        uploadBuffers();
+
+        if (regions.isEmpty()) return;
+
+        GL11.glBlendFunc(GL11.GL_DST_COLOR, GL11.GL_SRC_COLOR);
+        Minecraft.getMinecraft().getTextureManager().bindTexture(textureLocation);
+
+        GL11.glColor4f(1.0F, 1.0F, 1.0F, 0.5F);
+        GL11.glPushMatrix();
+        GL11.glDisable(GL11.GL_ALPHA_TEST);
+        GL11.glPolygonOffset(-3.0F, -3.0F);
+        GL11.glEnable(GL11.GL_POLYGON_OFFSET_FILL);
+        GL11.glEnable(GL11.GL_ALPHA_TEST);
+        boolean glBlendState = GL11.glIsEnabled(GL11.GL_BLEND);
+        GL11.glEnable(GL11.GL_BLEND);
+
+        // render overlays
+        gpuTimer.begin();
+        renderInstanced(x, y, z);
+        gpuTimer.end();
+
+        // disable blending (if it was disabled previously)
+        if (!glBlendState) GL11.glDisable(GL11.GL_BLEND);
+        GL11.glDisable(GL11.GL_ALPHA_TEST);
+        GL11.glPolygonOffset(0.0F, 0.0F);
+        GL11.glDisable(GL11.GL_POLYGON_OFFSET_FILL);
+        GL11.glEnable(GL11.GL_ALPHA_TEST);
+        GL11.glDepthMask(true);
+        GL11.glPopMatrix();
+    }
+
+    private void debugMessage(String fmt, Object... args) {
+        if (config.isDebug()) {
+            String message = String.format(fmt, args);
+            System.err.printf("[LightLevelOverlay] %s\n", message);
+        }
+    }
+}
@@ -2,32 +2,109 @@ package cc.apoc.lloverlay;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL15;
 
 import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.culling.Frustrum;
 import net.minecraft.util.ResourceLocation;
+import net.minecraft.world.ChunkCoordIntPair;
 
+/**
+ * Renders the overlays from a vertex buffer object per chunk.
+ * 
+ * Every overlay is a quad of 4 vertices, drawn with a static index buffer
+ * shared by all chunks. A vertex is 6 shorts: the position relative to the
+ * chunk in 1/64 blocks, one short padding and the texture coordinates in
+ * 1/4096 of the texture, both are scaled back by the modelview and texture
+ * matrix. That is 48 bytes per overlay.
+ */
 public class LightLevelOverlayRendererVBO implements LightLevelOverlayRenderer {
     
+    // shorts per vertex and the offsets in it (x, y, z, padding, u, v)
+    private static final int VERTEX_SHORTS = 6;
+    private static final int TEXCOORD_OFFSET = 4;
+    private static final int VERTEX_STRIDE = VERTEX_SHORTS * 2;
+    private static final int QUAD_SHORTS = 4 * VERTEX_SHORTS;
+    
+    // scale of positions and texture coordinates
+    private static final int POSITION_UNITS = 64;
+    private static final int TEXCOORD_UNITS = 4096;
+    
+    // the index buffer covers this many quads (unsigned short indices),
+    // larger chunks are drawn in several batches
+    private static final int BATCH_QUADS = 65536 / 4;
+    
+    /**
+     * Vertex buffer with the overlays of one chunk, only used by the render thread.
+     */
+    private static class Region {
+        public final int chunkX;
+        public final int chunkZ;
+        public int bufferId = 0;
+        // quads in the buffer object
+        public int quads = 0;
+        // vertex data of the snapshot, uploaded unless queued
+        public short[] data;
+        // height of the lowest and highest overlay, for culling
+        public double minY;
+        public double maxY;
+        public boolean queued = false;
+        public boolean removed = false;
+        
+        public Region(long key) {
+            chunkX = (int) key;
+            chunkZ = (int) (key >> 32);
+        }
+    }
+    
     private ResourceLocation textureLocation;
     
     private LightLevelOverlayConfig config;
     
-    int vertexBufferId = 0;
+    // static index buffer, two triangles per quad
     int indexBufferId = 0;
     
-    // stores interleaved vertex + texture coords
-    private FloatBuffer vertexBuffer;
-    private float[] vertexArray;
+    // interleaved vertex + texture coords of the chunk currently generated,
+    // grows with the largest chunk
+    private short[] vertexArray = new short[64 * QUAD_SHORTS];
+    
+    // replaces the vertex data of the chunks, only used by the render thread,
+    // created with the index buffer so the renderer can be built without context
+    private LightLevelOverlayBufferUpload bufferUpload;
     
     private int vertexArrayIndex = 0;
     
-    private int vertices = 0;
+    // GPU time of the draws, created on the first frame
+    private LightLevelOverlayGpuTimer gpuTimer;
     
-    boolean needUpload = false;
+    // view frustum of the frame, created on the first frame
+    private Frustrum frustrum;
+    
+    // vertex data by chunk coordinates, only used by the generation thread
+    private Map<Long, short[]> chunks = new HashMap<Long, short[]>();
+    private long chunkKey;
+    private int chunkBlockX;
+    private int chunkBlockZ;
+    
+    // immutable copy of the chunks, published by stopGenerate() and
+    // picked up by the render thread without locking
+    private volatile Map<Long, short[]> snapshot = Collections.emptyMap();
+    
+    // the render thread keeps a region per chunk of the snapshot
+    private Map<Long, short[]> renderedSnapshot = Collections.emptyMap();
+    private Map<Long, Region> regions = new HashMap<Long, Region>();
+    // regions waiting for upload, uploaded over several frames
+    private List<Region> uploadQueue = new LinkedList<Region>();
     
     public LightLevelOverlayRendererVBO(LightLevelOverlayConfig config) {
         this.config = config;
@@ -35,60 +112,84 @@ public class LightLevelOverlayRendererVBO implements LightLevelOverlayRenderer {
         String domain = "minecraft";
         if (config.isForge()) domain = "lloverlay";
         textureLocation = new ResourceLocation(domain + ":textures/lightlevel.png");
-        
-        // init buffers used for the vbo
-        int maxVertices = ((int) Math.pow(config.getDrawChunks()*16 * 2, 3) + 1);
-        int maxTexCoords = ((int) Math.pow(config.getDrawChunks()*16 * 2, 3) + 1);
-        int maxFloats = maxVertices * 3 + maxTexCoords * 2;
-        
-        vertexBuffer = createFloatBuffer(maxFloats);
-        vertexArray = new float[maxFloats];
-        
-        vertexBufferId = GL15.glGenBuffers();
     }
         
-    public synchronized void clear() {
+    public void clear() {
+        snapshot = Collections.emptyMap();
+    }
+    
+    public void startChunk(int chunkX, int chunkZ) {
+        chunkKey = ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ);
+        chunkBlockX = chunkX << 4;
+        chunkBlockZ = chunkZ << 4;
         vertexArrayIndex = 0;
     }
     
-    public synchronized void addOverlay(int x, int y, int z, double blockHeight, int tex) {
-        double boxMinX = 0.0;
-        double boxMaxX = 1.0;
-        double boxMinZ = 0.0;
-        double boxMaxZ = 1.0;
-        
+    public void addOverlay(int x, int y, int z, double blockHeight, int tex) {
         int textureX = (tex & 15) << 4;
         int textureY = tex & 240;
         
-        // texture coordinates
-        float umin = (float) (((double)textureX + boxMinX * 16.0D) / 256.0f);
-        float umax = (float) (((double)textureX + boxMaxX * 16.0D - 0.01D) / 256.0f);
-        float vmin = (float) (((double)textureY + boxMinZ * 16.0D) / 256.0f);
-        float vmax = (float) (((double)textureY + boxMaxZ * 16.0D - 0.01D) / 256.0f);
+        // texture coordinates, the maximum slightly inside of the cell
+        short umin = (short) (textureX * 16);
+        short umax = (short) ((textureX + 16) * 16 - 1);
+        short vmin = (short) (textureY * 16);
+        short vmax = (short) ((textureY + 16) * 16 - 1);
 
-        // plane geometry coordinates
-        float xmin = (float) (x + boxMinX);
-        float xmax = (float) (x + boxMaxX);
-        float ycoord = (float) (y + blockHeight + 0.014);
-        float zmin = (float) (z + boxMinZ);
-        float zmax = (float) (z + boxMaxZ);
+        // plane geometry coordinates, relative to the chunk
+        short xmin = (short) ((x - chunkBlockX) * POSITION_UNITS);
+        short xmax = (short) (xmin + POSITION_UNITS);
+        short ycoord = (short) Math.round((y + blockHeight + 0.014) * POSITION_UNITS);
+        short zmin = (short) ((z - chunkBlockZ) * POSITION_UNITS);
+        short zmax = (short) (zmin + POSITION_UNITS);
 
-        // add plane vertices
+        if (vertexArrayIndex + QUAD_SHORTS > vertexArray.length) {
+            vertexArray = Arrays.copyOf(vertexArray, vertexArray.length * 2);
+        }
+        
+        // add plane vertices, the index buffer makes two triangles of them
         addVertex(xmax, ycoord, zmax, umax, vmax);
         addVertex(xmax, ycoord, zmin, umax, vmin);
         addVertex(xmin, ycoord, zmin, umin, vmin);
-        addVertex(xmax, ycoord, zmax, umax, vmax);
-        addVertex(xmin, ycoord, zmin, umin, vmin);
         addVertex(xmin, ycoord, zmax, umin, vmax);
     }
     
-    private void addVertex(float x, float y, float z, float u, float v) {
+    public void addMergedOverlay(int x, int y, int z, int sizeX, int sizeZ, double blockHeight, int tex) {
+        // every vertex at the center of the cell
+        short u = (short) ((((tex & 15) << 4) + 8) * 16);
+        short v = (short) (((tex & 240) + 8) * 16);
+        
+        short xmin = (short) ((x - chunkBlockX) * POSITION_UNITS);
+        short xmax = (short) (xmin + sizeX * POSITION_UNITS);
+        short ycoord = (short) Math.round((y + blockHeight + 0.014) * POSITION_UNITS);
+        short zmin = (short) ((z - chunkBlockZ) * POSITION_UNITS);
+        short zmax = (short) (zmin + sizeZ * POSITION_UNITS);
+        
+        if (vertexArrayIndex + QUAD_SHORTS > vertexArray.length) {
+            vertexArray = Arrays.copyOf(vertexArray, vertexArray.length * 2);
+        }
+        
+        addVertex(xmax, ycoord, zmax, u, v);
+        addVertex(xmax, ycoord, zmin, u, v);
+        addVertex(xmin, ycoord, zmin, u, v);
+        addVertex(xmin, ycoord, zmax, u, v);
+    }
+    
+    private void addVertex(short x, short y, short z, short u, short v) {
         vertexArray[vertexArrayIndex++] = x;
         vertexArray[vertexArrayIndex++] = y;
         vertexArray[vertexArrayIndex++] = z;
+        vertexArrayIndex++;
         vertexArray[vertexArrayIndex++] = u;
         vertexArray[vertexArrayIndex++] = v;
     }
+    
+    public void stopChunk() {
+        chunks.put(chunkKey, Arrays.copyOf(vertexArray, vertexArrayIndex));
+    }
+    
+    public void removeChunk(int chunkX, int chunkZ) {
+        chunks.remove(ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ));
+    }
 
     private int floatHashCode(Float... floats) {
         final int prime = 31;
@@ -99,44 +200,182 @@ public class LightLevelOverlayRendererVBO implements LightLevelOverlayRenderer {
     }
     
     public void startGenerate() {
-        clear();
     }
 
+    /**
+     * Publishes the vertex data of all chunks to the render thread.
+     */
     public void stopGenerate() {
-
-        vertexBuffer.limit(vertexArrayIndex);
-        vertexBuffer.put(vertexArray, 0, vertexArrayIndex);
-        vertexBuffer.position(0);
-
-        vertices = vertexArrayIndex / (3+2);
+        snapshot = Collections.unmodifiableMap(new HashMap<Long, short[]>(chunks));
+    }
+    
+    /**
+     * Compares the latest snapshot with the one the regions were created for,
+     * queues the regions of changed chunks for upload and deletes the buffers
+     * of removed chunks.
+     */
+    private void updateRegions() {
+        Map<Long, short[]> current = snapshot;
+        if (current == renderedSnapshot) return;
+        
+        for (Iterator<Map.Entry<Long, Region>> it = regions.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Long, Region> entry = it.next();
+            if (!current.containsKey(entry.getKey())) {
+                Region region = entry.getValue();
+                if (region.bufferId != 0) {
+                    GL15.glDeleteBuffers(region.bufferId);
+                }
+                region.removed = true;
+                it.remove();
+            }
+        }
         
-        needUpload = true;
+        for (Map.Entry<Long, short[]> entry : current.entrySet()) {
+            Region region = regions.get(entry.getKey());
+            if (region == null) {
+                region = new Region(entry.getKey());
+                regions.put(entry.getKey(), region);
+            }
+            else if (region.data == entry.getValue()) {
+                continue;
+            }
+            region.data = entry.getValue();
+            if (!region.queued) {
+                region.queued = true;
+                uploadQueue.add(region);
+            }
+        }
+        renderedSnapshot = current;
     }
     
+    /**
+     * Uploads queued regions until the byte budget of this frame is used up,
+     * the remaining regions are uploaded in the next frames.
+     */
     private void uploadBuffers() {
-        debugMessage("upload VBO");
+        if (uploadQueue.isEmpty()) return;
+        
+        if (indexBufferId == 0) {
+            createIndexBuffer();
+            bufferUpload = new LightLevelOverlayBufferUpload();
+        }
+        
         long tStart = System.currentTimeMillis();
+        long uploadStart = System.nanoTime();
+        int budget = config.getUploadBudget() * 1024;
+        int bytes = 0;
+        int uploads = 0;
         
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vertexBufferId);
-        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, vertexArrayIndex, GL15.GL_STATIC_DRAW);
-        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, vertexBuffer, GL15.GL_STATIC_DRAW);
+        for (Iterator<Region> it = uploadQueue.iterator(); it.hasNext() && (bytes < budget || uploads == 0);) {
+            Region region = it.next();
+            it.remove();
+            region.queued = false;
+            if (region.removed) continue;
+            
+            if (region.bufferId == 0) {
+                region.bufferId = GL15.glGenBuffers();
+            }
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, region.bufferId);
+            bufferUpload.upload(GL15.GL_ARRAY_BUFFER, region.data);
+            
+            updateBounds(region);
+            region.quads = region.data.length / QUAD_SHORTS;
+            bytes += region.data.length * 2;
+            uploads++;
+        }
         GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
         
-        needUpload = false;
-        debugMessage("VBO upload took %dms for %d vertices.", System.currentTimeMillis() - tStart, vertices);
+        LightLevelOverlayMetrics metrics = LightLevelOverlayMetrics.getInstance();
+        metrics.uploadTime.record(System.nanoTime() - uploadStart);
+        metrics.uploads.add(uploads);
+        metrics.uploadBytes.add(bytes);
         
+        debugMessage("VBO upload took %dms for %d regions (%d bytes), %d regions queued.",
+                System.currentTimeMillis() - tStart, uploads, bytes, uploadQueue.size());
+    }
+    
+    /**
+     * Fills the index buffer with two triangles for each of BATCH_QUADS quads.
+     */
+    private void createIndexBuffer() {
+        ShortBuffer indices = createShortBuffer(BATCH_QUADS * 6);
+        for (int quad = 0; quad < BATCH_QUADS; quad++) {
+            int first = quad * 4;
+            indices.put((short) first).put((short) (first + 1)).put((short) (first + 2));
+            indices.put((short) first).put((short) (first + 2)).put((short) (first + 3));
+        }
+        indices.flip();
+        
+        indexBufferId = GL15.glGenBuffers();
+        GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+        GL15.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, indices, GL15.GL_STATIC_DRAW);
+        GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, 0);
     }
     
-    private void renderVBO() {
+    private boolean isVisible(Frustrum frustrum, Region region) {
+        double minX = region.chunkX << 4;
+        double minZ = region.chunkZ << 4;
+        return frustrum.isBoxInFrustum(minX, region.minY, minZ, minX + 16, region.maxY, minZ + 16);
+    }
+    
+    /**
+     * Height range of the overlays of the region in blocks.
+     */
+    private void updateBounds(Region region) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 1; i < region.data.length; i += VERTEX_SHORTS) {
+            min = Math.min(min, region.data[i]);
+            max = Math.max(max, region.data[i]);
+        }
+        region.minY = (double) min / POSITION_UNITS;
+        region.maxY = (double) max / POSITION_UNITS;
+    }
+    
+    private void renderVBO(double x, double y, double z) {
         GL11.glEnableClientState(GL11.GL_VERTEX_ARRAY);
         GL11.glEnableClientState(GL11.GL_TEXTURE_COORD_ARRAY);
         
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vertexBufferId);
+        // texture coordinates are in 1/4096
+        GL11.glMatrixMode(GL11.GL_TEXTURE);
+        GL11.glPushMatrix();
+        GL11.glScalef(1.0F / TEXCOORD_UNITS, 1.0F / TEXCOORD_UNITS, 1.0F);
+        GL11.glMatrixMode(GL11.GL_MODELVIEW);
         
-        GL11.glVertexPointer(3, GL11.GL_FLOAT, 20, 0); // 20 stride(uvxyz 5*4)
-        GL11.glTexCoordPointer(2, GL11.GL_FLOAT, 20, 12); // 20 stride(uvxyz 5*4), 12 offset(xyz 3*4), uvxyz
-
-        GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, vertices);
+        GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+        
+        // the clipping planes are shared with the world render, which
+        // updates them every frame, only the camera position is set
+        if (frustrum == null) {
+            frustrum = new Frustrum();
+        }
+        frustrum.setPosition(x, y, z);
+        
+        for (Region region : regions.values()) {
+            if (region.quads == 0 || !isVisible(frustrum, region)) continue;
+            
+            // positions are relative to the chunk, in 1/64 blocks
+            GL11.glPushMatrix();
+            GL11.glTranslated((region.chunkX << 4) - x, -y, (region.chunkZ << 4) - z);
+            GL11.glScalef(1.0F / POSITION_UNITS, 1.0F / POSITION_UNITS, 1.0F / POSITION_UNITS);
+            
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, region.bufferId);
+            
+            for (int first = 0; first < region.quads; first += BATCH_QUADS) {
+                long offset = (long) first * 4 * VERTEX_STRIDE;
+                GL11.glVertexPointer(3, GL11.GL_SHORT, VERTEX_STRIDE, offset);
+                GL11.glTexCoordPointer(2, GL11.GL_SHORT, VERTEX_STRIDE, offset + TEXCOORD_OFFSET * 2);
+                
+                int quads = Math.min(BATCH_QUADS, region.quads - first);
+                GL11.glDrawElements(GL11.GL_TRIANGLES, quads * 6, GL11.GL_UNSIGNED_SHORT, 0);
+            }
+            
+            GL11.glPopMatrix();
+        }
+        
+        GL11.glMatrixMode(GL11.GL_TEXTURE);
+        GL11.glPopMatrix();
+        GL11.glMatrixMode(GL11.GL_MODELVIEW);
 
         // disable the VBO
         GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
@@ -144,7 +383,11 @@ public class LightLevelOverlayRendererVBO implements LightLevelOverlayRenderer {
     }
     
     public int getCacheSize() {
-        return (int) vertexArrayIndex / 3;
+        int shorts = 0;
+        for (short[] data : snapshot.values()) {
+            shorts += data.length;
+        }
+        return shorts / QUAD_SHORTS;
     }
     
     /**
@@ -156,12 +399,11 @@ public class LightLevelOverlayRendererVBO implements LightLevelOverlayRenderer {
      * @param y
      * @param z
      */
-    public synchronized void render(double x, double y, double z) {
-        if (needUpload) {
-            uploadBuffers();
-        }
+    public void render(double x, double y, double z) {
+        updateRegions();
+        uploadBuffers();
         
-        if (vertices == 0) return;
+        if (regions.isEmpty()) return;
         
         GL11.glBlendFunc(GL11.GL_DST_COLOR, GL11.GL_SRC_COLOR);
         Minecraft.getMinecraft().getTextureManager().bindTexture(textureLocation);
@@ -174,10 +416,14 @@ public class LightLevelOverlayRendererVBO implements LightLevelOverlayRenderer {
         GL11.glEnable(GL11.GL_ALPHA_TEST);
         boolean glBlendState = GL11.glIsEnabled(GL11.GL_BLEND);
         GL11.glEnable(GL11.GL_BLEND);
-        GL11.glTranslated(-x, -y, -z);
 
         // render overlays
-        renderVBO();
+        if (gpuTimer == null) {
+            gpuTimer = new LightLevelOverlayGpuTimer(LightLevelOverlayMetrics.getInstance());
+        }
+        gpuTimer.begin();
+        renderVBO(x, y, z);
+        gpuTimer.end();
 
         // disable blending (if it was disabled previously)
         if (!glBlendState) GL11.glDisable(GL11.GL_BLEND);
@@ -189,13 +435,13 @@ public class LightLevelOverlayRendererVBO implements LightLevelOverlayRenderer {
         GL11.glPopMatrix();
     }
     
-    private FloatBuffer createFloatBuffer(int size) {
-        ByteBuffer vbb = ByteBuffer.allocateDirect(size * 4); 
+    private ShortBuffer createShortBuffer(int size) {
+        ByteBuffer vbb = ByteBuffer.allocateDirect(size * 2); 
         vbb.order(ByteOrder.nativeOrder());
-        FloatBuffer fb = vbb.asFloatBuffer();
-        fb.position(0);
+        ShortBuffer sb = vbb.asShortBuffer();
+        sb.position(0);
         
-        return fb;
+        return sb;
     }
     
     private void debugMessage(String fmt, Object... args) {
@@ -1,32 +1,96 @@
 package cc.apoc.lloverlay;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.lwjgl.opengl.GL11;
 
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.Tessellator;
 import net.minecraft.util.ResourceLocation;
+import net.minecraft.world.ChunkCoordIntPair;
 
 public class LightLevelOverlayRendererVanilla implements LightLevelOverlayRenderer {
-    private static class BlockOverlay {
-        public int x;
-        public int y;
-        public int z;
-        public double blockHeight; // to render on halfslabs, snow etc.
-        public int tex; // texture index
-        public BlockOverlay(int x, int y, int z, double blockHeight, int tex) {
-            this.x = x;
-            this.y = y;
-            this.z = z;
-            this.blockHeight = blockHeight;
-            this.tex = tex;
+    /**
+     * Overlays of one chunk in primitive arrays, reused for other chunks
+     * once the render thread doesn't need them anymore.
+     */
+    private static class ChunkOverlays {
+        private static final int INITIAL_CAPACITY = 64;
+        
+        public int chunkX;
+        public int chunkZ;
+        public int size = 0;
+        public int[] x = new int[INITIAL_CAPACITY];
+        public int[] y = new int[INITIAL_CAPACITY];
+        public int[] z = new int[INITIAL_CAPACITY];
+        // to render on halfslabs, snow etc., in 1/64 blocks
+        public short[] blockHeight = new short[INITIAL_CAPACITY];
+        // texture index
+        public short[] tex = new short[INITIAL_CAPACITY];
+        // size of merged overlays in blocks, 0 for single overlays
+        public byte[] sizeX = new byte[INITIAL_CAPACITY];
+        public byte[] sizeZ = new byte[INITIAL_CAPACITY];
+        // compiled overlays, 0 until drawn, only used by the render thread
+        public int displayList = 0;
+        
+        public void add(int x, int y, int z, int sizeX, int sizeZ, double blockHeight, int tex) {
+            if (size == this.x.length) {
+                int capacity = size * 2;
+                this.x = Arrays.copyOf(this.x, capacity);
+                this.y = Arrays.copyOf(this.y, capacity);
+                this.z = Arrays.copyOf(this.z, capacity);
+                this.blockHeight = Arrays.copyOf(this.blockHeight, capacity);
+                this.tex = Arrays.copyOf(this.tex, capacity);
+                this.sizeX = Arrays.copyOf(this.sizeX, capacity);
+                this.sizeZ = Arrays.copyOf(this.sizeZ, capacity);
+            }
+            this.x[size] = x;
+            this.y[size] = y;
+            this.z[size] = z;
+            this.blockHeight[size] = (short) Math.round(blockHeight * HEIGHT_UNITS);
+            this.tex[size] = (short) tex;
+            this.sizeX[size] = (byte) sizeX;
+            this.sizeZ[size] = (byte) sizeZ;
+            size++;
         }
     }
     
-    private List<BlockOverlay> cache;
-    private List<BlockOverlay> swapCache;
+    /**
+     * Chunks published to the render thread, with the overlays replaced
+     * since the last snapshot the render thread picked up. The lists are
+     * refilled whenever the snapshot gets back to the generation thread.
+     */
+    private static class Snapshot {
+        public final List<ChunkOverlays> chunks = new ArrayList<ChunkOverlays>();
+        public final List<ChunkOverlays> retired = new ArrayList<ChunkOverlays>();
+        // published and not picked up by the render thread yet
+        public volatile boolean fresh = false;
+    }
+    
+    private static final int HEIGHT_UNITS = 64;
+    
+    // overlays by chunk coordinates, only used by the generation thread
+    private LightLevelOverlayChunkMap<ChunkOverlays> chunks = new LightLevelOverlayChunkMap<ChunkOverlays>();
+    // overlays of the chunk currently generated
+    private ChunkOverlays chunkOverlays;
+    private long chunkKey;
+    
+    // three snapshots, each owned by one thread at a time: stopGenerate()
+    // fills back and swaps it with the published one, the render thread
+    // swaps front with the published one when that is fresh. None is changed
+    // while the other thread can still read it, none is allocated again.
+    private Snapshot back = new Snapshot();
+    private AtomicReference<Snapshot> published = new AtomicReference<Snapshot>(new Snapshot());
+    private Snapshot front = new Snapshot();
+    
+    // overlays released by the render thread, reused by the generation thread
+    private List<ChunkOverlays> pool = new ArrayList<ChunkOverlays>();
+    
+    // GPU time of the draws, created on the first frame
+    private LightLevelOverlayGpuTimer gpuTimer;
     
     private ResourceLocation textureLocation;
     
@@ -34,42 +98,153 @@ public class LightLevelOverlayRendererVanilla implements LightLevelOverlayRender
     
     public LightLevelOverlayRendererVanilla(LightLevelOverlayConfig config) {
         this.config = config;
-        cache = new LinkedList<BlockOverlay>();
         String domain = "minecraft";
         if (config.isForge()) domain = "lloverlay";
         textureLocation = new ResourceLocation(domain + ":textures/lightlevel.png");
     }
     
-    public synchronized void clear() {
-        cache.clear();
+    /**
+     * Stops drawing the overlays until the next snapshot, called by the
+     * render thread.
+     */
+    public void clear() {
+        for (int i = 0; i < front.chunks.size(); i++) {
+            deleteDisplayList(front.chunks.get(i));
+        }
+        front.chunks.clear();
+    }
+    
+    public void startChunk(int chunkX, int chunkZ) {
+        chunkKey = ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ);
+        chunkOverlays = pool.isEmpty() ? new ChunkOverlays() : pool.remove(pool.size() - 1);
+        chunkOverlays.chunkX = chunkX;
+        chunkOverlays.chunkZ = chunkZ;
+        chunkOverlays.size = 0;
     }
     
-    public synchronized void addOverlay(int x, int y, int z, double blockHeight, int tex) {
-        swapCache.add(new BlockOverlay(x, y, z, blockHeight, tex));
+    public void addOverlay(int x, int y, int z, double blockHeight, int tex) {
+        chunkOverlays.add(x, y, z, 0, 0, blockHeight, tex);
+    }
+    
+    public void addMergedOverlay(int x, int y, int z, int sizeX, int sizeZ, double blockHeight, int tex) {
+        chunkOverlays.add(x, y, z, sizeX, sizeZ, blockHeight, tex);
+    }
+    
+    public void stopChunk() {
+        ChunkOverlays old = chunks.put(chunkKey, chunkOverlays);
+        if (old != null) back.retired.add(old);
+        chunkOverlays = null;
+    }
+    
+    public void removeChunk(int chunkX, int chunkZ) {
+        ChunkOverlays old = chunks.remove(ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ));
+        if (old != null) back.retired.add(old);
     }
     
     public void startGenerate() {
-        swapCache = new LinkedList<BlockOverlay>();
     }
 
+    /**
+     * Publishes the chunks and gets back the snapshot published before.
+     * 
+     * If the render thread picked that one up, the overlays it replaced
+     * are not drawn anymore and can be reused. If it didn't, they may still
+     * be drawn and stay retired in the snapshot until a later one is
+     * picked up.
+     */
     public void stopGenerate() {
-        cache = swapCache;
+        back.chunks.clear();
+        for (int slot = 0; slot < chunks.getCapacity(); slot++) {
+            ChunkOverlays overlays = chunks.getValue(slot);
+            if (overlays != null) back.chunks.add(overlays);
+        }
+        back.fresh = true;
+        back = published.getAndSet(back);
+        
+        if (!back.fresh) {
+            for (int i = 0; i < back.retired.size(); i++) {
+                pool.add(back.retired.get(i));
+            }
+            back.retired.clear();
+        }
+    }
+    
+    /**
+     * Switches to the latest snapshot, the display lists of the overlays
+     * it replaced are deleted before they are reused for another chunk.
+     */
+    private Snapshot updateCache() {
+        if (published.get().fresh) {
+            Snapshot current = published.getAndSet(front);
+            current.fresh = false;
+            for (int i = 0; i < current.retired.size(); i++) {
+                deleteDisplayList(current.retired.get(i));
+            }
+            front = current;
+        }
+        return front;
     }
     
+    private void deleteDisplayList(ChunkOverlays overlays) {
+        if (overlays.displayList != 0) {
+            GL11.glDeleteLists(overlays.displayList, 1);
+            overlays.displayList = 0;
+        }
+    }
+    
+    /**
+     * Compiles the overlays of a chunk into a display list, relative to
+     * the chunk origin.
+     */
+    private int compileDisplayList(ChunkOverlays overlays) {
+        int displayList = GL11.glGenLists(1);
+        GL11.glNewList(displayList, GL11.GL_COMPILE);
+        
+        Tessellator tessellator = Tessellator.instance;
+        tessellator.startDrawingQuads();
+        tessellator.setTranslation(-(overlays.chunkX << 4), 0.0D, -(overlays.chunkZ << 4));
+        tessellator.disableColor();
+        for (int i = 0; i < overlays.size; i++) {
+            double y = overlays.y[i] + (double) overlays.blockHeight[i] / HEIGHT_UNITS;
+            if (overlays.sizeX[i] == 0) {
+                renderOverlay(overlays.x[i], y, overlays.z[i], overlays.tex[i]);
+            }
+            else {
+                renderMergedOverlay(overlays.x[i], y, overlays.z[i], overlays.sizeX[i], overlays.sizeZ[i], overlays.tex[i]);
+            }
+        }
+        tessellator.draw();
+        tessellator.setTranslation(0.0D, 0.0D, 0.0D);
+        
+        GL11.glEndList();
+        return displayList;
+    }
+    
+    /**
+     * Number of overlays drawn, called by the render thread.
+     */
     public int getCacheSize() {
-        return cache.size();
+        int size = 0;
+        for (int i = 0; i < front.chunks.size(); i++) {
+            size += front.chunks.get(i).size;
+        }
+        return size;
     }
     
     /**
      * Render overlays, translated by client player position.
      * 
-     * Does use the vanilla vertex array implementation internally (not VBO).
+     * Does use the vanilla vertex array implementation internally (not VBO),
+     * every chunk is compiled into a display list once and replayed in
+     * every frame.
      * 
      * @param x
      * @param y
      * @param z
      */
-    public synchronized void render(double x, double y, double z) {
+    public void render(double x, double y, double z) {
+        Snapshot snapshot = updateCache();
+        
         GL11.glBlendFunc(GL11.GL_DST_COLOR, GL11.GL_SRC_COLOR);
         Minecraft.getMinecraft().getTextureManager().bindTexture(textureLocation);
 
@@ -81,18 +256,34 @@ public class LightLevelOverlayRendererVanilla implements LightLevelOverlayRender
         GL11.glEnable(GL11.GL_ALPHA_TEST);
         boolean glBlendState = GL11.glIsEnabled(GL11.GL_BLEND);
         GL11.glEnable(GL11.GL_BLEND);
-        Tessellator tessellator = Tessellator.instance;
-        tessellator.startDrawingQuads();
-        tessellator.setTranslation(-x, -y, -z);
-        tessellator.disableColor();
 
-        // render overlays
-        for (BlockOverlay overlay : cache) {
-            renderOverlay(overlay);
+        // render overlays, the display lists compiled in between are measured as well
+        if (gpuTimer == null) {
+            gpuTimer = new LightLevelOverlayGpuTimer(LightLevelOverlayMetrics.getInstance());
+        }
+        gpuTimer.begin();
+        for (int i = 0; i < snapshot.chunks.size(); i++) {
+            ChunkOverlays overlays = snapshot.chunks.get(i);
+            if (overlays.size == 0) continue;
+            
+            if (overlays.displayList == 0) {
+                long compileStart = System.nanoTime();
+                overlays.displayList = compileDisplayList(overlays);
+                
+                // the compiled list counts as upload, 4 vertices of 32 bytes per overlay
+                LightLevelOverlayMetrics metrics = LightLevelOverlayMetrics.getInstance();
+                metrics.uploadTime.record(System.nanoTime() - compileStart);
+                metrics.uploads.add(1);
+                metrics.uploadBytes.add(overlays.size * 4 * 32);
+            }
+            
+            GL11.glPushMatrix();
+            GL11.glTranslated((overlays.chunkX << 4) - x, -y, (overlays.chunkZ << 4) - z);
+            GL11.glCallList(overlays.displayList);
+            GL11.glPopMatrix();
         }
+        gpuTimer.end();
 
-        tessellator.draw();
-        tessellator.setTranslation(0.0D, 0.0D, 0.0D);
         // disable blending (if it was disabled previously)
         if (!glBlendState) GL11.glDisable(GL11.GL_BLEND);
         GL11.glDisable(GL11.GL_ALPHA_TEST);
@@ -108,9 +299,12 @@ public class LightLevelOverlayRendererVanilla implements LightLevelOverlayRender
      * 
      * Does triangulate internally (using the vanilla tessellator).
      * 
-     * @param overlay
+     * @param x
+     * @param y top of the block
+     * @param z
+     * @param tex texture index
      */
-    public void renderOverlay(BlockOverlay overlay) {
+    public void renderOverlay(int x, double y, int z, int tex) {
         Tessellator tessellator = Tessellator.instance;
 
         double boxMinX = 0.0;
@@ -118,8 +312,8 @@ public class LightLevelOverlayRendererVanilla implements LightLevelOverlayRender
         double boxMinZ = 0.0;
         double boxMaxZ = 1.0;
         
-        int textureX = (overlay.tex & 15) << 4;
-        int textureY = overlay.tex & 240;
+        int textureX = (tex & 15) << 4;
+        int textureY = tex & 240;
         
         // texture coordinates
         double umin = ((double)textureX + boxMinX * 16.0D) / 256.0D;
@@ -128,17 +322,39 @@ public class LightLevelOverlayRendererVanilla implements LightLevelOverlayRender
         double vmax = ((double)textureY + boxMaxZ * 16.0D - 0.01D) / 256.0D;
 
         // plane geometry coordinates
-        double xmin = overlay.x + boxMinX;
-        double xmax = overlay.x + boxMaxX;
-        double y = overlay.y + overlay.blockHeight + 0.014;
-        double zmin = overlay.z + boxMinZ;
-        double zmax = overlay.z + boxMaxZ;
+        double xmin = x + boxMinX;
+        double xmax = x + boxMaxX;
+        double ycoord = y + 0.014;
+        double zmin = z + boxMinZ;
+        double zmax = z + boxMaxZ;
 
         // add plane vertices
-        tessellator.addVertexWithUV(xmax, y, zmax, umax, vmax);
-        tessellator.addVertexWithUV(xmax, y, zmin, umax, vmin);
-        tessellator.addVertexWithUV(xmin, y, zmin, umin, vmin);
-        tessellator.addVertexWithUV(xmin, y, zmax, umin, vmax);
+        tessellator.addVertexWithUV(xmax, ycoord, zmax, umax, vmax);
+        tessellator.addVertexWithUV(xmax, ycoord, zmin, umax, vmin);
+        tessellator.addVertexWithUV(xmin, ycoord, zmin, umin, vmin);
+        tessellator.addVertexWithUV(xmin, ycoord, zmax, umin, vmax);
+    }
+
+    /**
+     * Renders a single plane of sizeX * sizeZ blocks in the colour of the
+     * center of the texture cell.
+     */
+    public void renderMergedOverlay(int x, double y, int z, int sizeX, int sizeZ, int tex) {
+        Tessellator tessellator = Tessellator.instance;
+        
+        double u = (((tex & 15) << 4) + 8) / 256.0D;
+        double v = ((tex & 240) + 8) / 256.0D;
+        
+        double xmin = x;
+        double xmax = x + sizeX;
+        double ycoord = y + 0.014;
+        double zmin = z;
+        double zmax = z + sizeZ;
+        
+        tessellator.addVertexWithUV(xmax, ycoord, zmax, u, v);
+        tessellator.addVertexWithUV(xmax, ycoord, zmin, u, v);
+        tessellator.addVertexWithUV(xmin, ycoord, zmin, u, v);
+        tessellator.addVertexWithUV(xmin, ycoord, zmax, u, v);
     }
 
     private void debugMessage(String fmt, Object... args) {
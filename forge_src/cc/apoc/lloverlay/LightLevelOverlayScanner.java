@@ -0,0 +1,433 @@
+package cc.apoc.lloverlay;
+
+/**
+ * Finds the overlays of a chunk by reading the raw block and light arrays
+ * of its 16x16x16 sections.
+ *
+ * The sections are passed from top to bottom and every section is read in
+ * the storage order of its arrays (index = y << 8 | z << 4 | x), state per
+ * column is kept in between. Sections without blocks are skipped in one step.
+ * With skylight every column ends at the heightmap, the sky light above it is
+ * always 15.
+ *
+ * In the spawnable only mode overlays are limited to the blocks mobs can
+ * spawn on: a solid top surface with two blocks without collision box
+ * above it, the first of them no liquid. The light is read in the block
+ * above the surface.
+ *
+ * getFingerprint() covers everything the overlays of a section depend on,
+ * sections with the fingerprint of the last pass are passed to
+ * reuseSection() instead of being scanned.
+ * The arrays have the same layout as in ExtendedBlockStorage and NibbleArray.
+ *
+ * scanChunk() does all of it for the arrays of a chunk, the generation
+ * thread, the benchmarks and the map tool all go through it.
+ *
+ * Not thread-safe, every worker keeps its own scanner and passes the
+ * settings of the pass with setSettings() before every chunk.
+ */
+class LightLevelOverlayScanner {
+    private short[] surfaces;
+    private int showLightlevelUpto;
+    private int textureRow;
+    private boolean useSkyLightlevel;
+    private boolean spawnableOnly;
+    // overlays at or above the heightmap can't be dark
+    private boolean clampToHeightMap;
+
+    // output and range of the chunk currently scanned
+    private LightLevelOverlayChunk overlays;
+    private int[] heightMap;
+    private int minY;
+    private int maxY;
+    // highest block scanned, per column and in total
+    private int[] columnTop = new int[256];
+    private int topY;
+    private int worldX;
+    private int worldZ;
+
+    // surface of the block above and the one above it, per column (z << 4 | x)
+    private int[] previous = new int[256];
+    private int[] previous2 = new int[256];
+
+    // arrays of the section above the current one
+    private byte[] aboveBlocks;
+    private byte[] aboveAdd;
+    private byte[] aboveData;
+    private byte[] aboveLight;
+    private boolean aboveExists;
+
+    // fingerprint of the settings and column ranges of the chunk
+    private long chunkFingerprint;
+
+    // blocks in the layers passed to scanSection() and sections scanned
+    // or reused, of the last scanChunk()
+    private long blocksScanned;
+    private int sectionsScanned;
+    private int sectionsReused;
+
+    public LightLevelOverlayScanner() {
+    }
+
+    public LightLevelOverlayScanner(short[] surfaces, int showLightlevelUpto, int textureRow, 
+            boolean useSkyLightlevel, boolean spawnableOnly, boolean hasSky) {
+        setSettings(surfaces, showLightlevelUpto, textureRow, useSkyLightlevel, spawnableOnly, hasSky);
+    }
+
+    /**
+     * @param spawnableOnly only surfaces mobs can spawn on get overlays
+     * @param hasSky false for worlds without sky light (nether)
+     */
+    public void setSettings(short[] surfaces, int showLightlevelUpto, int textureRow, 
+            boolean useSkyLightlevel, boolean spawnableOnly, boolean hasSky) {
+        this.surfaces = surfaces;
+        this.showLightlevelUpto = showLightlevelUpto;
+        this.textureRow = textureRow;
+        this.useSkyLightlevel = useSkyLightlevel;
+        this.spawnableOnly = spawnableOnly;
+        clampToHeightMap = useSkyLightlevel && hasSky && showLightlevelUpto < 15;
+    }
+
+    /**
+     * Starts scanning a chunk, the sections are passed with scanSection() or
+     * skipSection() from the top down, beginning with the section of
+     * topY + 1.
+     *
+     * @param heightMap of the chunk, for the sky light of missing sections
+     * @param minY lowest block that gets an overlay
+     * @param maxY highest block that gets an overlay
+     */
+    private void startChunk(LightLevelOverlayChunk overlays, int[] heightMap, int minY, int maxY) {
+        this.overlays = overlays;
+        this.heightMap = heightMap;
+        this.minY = minY;
+        this.maxY = maxY;
+        worldX = overlays.chunkX << 4;
+        worldZ = overlays.chunkZ << 4;
+        setAbove(false, null, null, null, null);
+        topY = -1;
+        clearColumns();
+        for (int column = 0; column < 256; column++) {
+            // the surface right below the heightmap reads the light
+            // above it, so the column can end one block lower
+            int top = clampToHeightMap ? Math.min(maxY, heightMap[column] - 1) : maxY;
+            columnTop[column] = top;
+            topY = Math.max(topY, top);
+        }
+
+        long fingerprint = System.identityHashCode(surfaces);
+        fingerprint = mix(fingerprint, showLightlevelUpto);
+        fingerprint = mix(fingerprint, textureRow);
+        fingerprint = mix(fingerprint, useSkyLightlevel ? 1 : 0);
+        fingerprint = mix(fingerprint, spawnableOnly ? 1 : 0);
+        for (int column = 0; column < 256; column++) {
+            fingerprint = mix(fingerprint, columnTop[column]);
+            // sky light of missing sections
+            fingerprint = mix(fingerprint, useSkyLightlevel ? heightMap[column] : 0);
+        }
+        chunkFingerprint = fingerprint;
+    }
+
+    public long getBlocksScanned() {
+        return blocksScanned;
+    }
+
+    public int getSectionsScanned() {
+        return sectionsScanned;
+    }
+
+    public int getSectionsReused() {
+        return sectionsReused;
+    }
+
+    /**
+     * Generates the overlays of a chunk into a new pass of its overlays.
+     *
+     * The arrays are indexed by section (y >> 4). Sections without blocks
+     * have no blocks array, they count as existing if they have a light
+     * array.
+     *
+     * @param heightMap of the chunk, for the sky light of missing sections
+     * @param minY lowest block that gets an overlay
+     * @param maxY highest block that gets an overlay, at most the top of
+     *             the highest section with blocks
+     * @param add upper 4 bits of the block ids, may be null
+     * @param reuse sections with the fingerprint of the last pass keep
+     *              their overlays instead of being scanned
+     */
+    public void scanChunk(LightLevelOverlayChunk overlays, int[] heightMap, int minY, int maxY,
+            byte[][] blocks, byte[][] add, byte[][] data, byte[][] light, boolean reuse) {
+        overlays.beginPass();
+        blocksScanned = 0;
+        sectionsScanned = 0;
+        sectionsReused = 0;
+        if (minY > maxY) return;
+
+        startChunk(overlays, heightMap, minY, maxY);
+        maxY = topY;
+
+        // from the top down, starting with the section above the first
+        // block for its light
+        for (int sectionY = Math.min(15, (maxY + 1) >> 4); sectionY >= minY >> 4; sectionY--) {
+            byte[] sectionLight = light[sectionY];
+            if (blocks[sectionY] == null) {
+                skipSection(sectionLight != null, sectionLight);
+                continue;
+            }
+            byte[] sectionBlocks = blocks[sectionY];
+            byte[] sectionAdd = add != null ? add[sectionY] : null;
+            byte[] sectionData = data[sectionY];
+
+            long fingerprint = getFingerprint(sectionY, sectionBlocks, sectionAdd, sectionData, sectionLight);
+            if (reuse && overlays.reuseSection(sectionY, fingerprint)) {
+                reuseSection(sectionY, sectionBlocks, sectionAdd, sectionData, sectionLight);
+                sectionsReused++;
+            }
+            else {
+                overlays.startSection(sectionY, fingerprint);
+                scanSection(sectionY, sectionBlocks, sectionAdd, sectionData, sectionLight);
+                overlays.stopSection(sectionY);
+                sectionsScanned++;
+            }
+        }
+    }
+
+    /**
+     * Section without blocks, either missing or empty.
+     *
+     * @param exists false if there is no section at all
+     * @param light block or sky light array of the section, may be null
+     */
+    private void skipSection(boolean exists, byte[] light) {
+        clearColumns();
+        setAbove(exists, null, null, null, light);
+    }
+
+    /**
+     * Fingerprint of the section, its arrays, the bottom two layers of the
+     * section above, the range scanned and the settings. Sections with the same
+     * fingerprint get the same overlays.
+     *
+     * Call it before the section is passed to scanSection() or reuseSection().
+     */
+    private long getFingerprint(int sectionY, byte[] blocks, byte[] add, byte[] data, byte[] light) {
+        int baseY = sectionY << 4;
+        long fingerprint = mix(chunkFingerprint, sectionY);
+        fingerprint = mix(fingerprint, Math.min(15, topY - baseY));
+        fingerprint = mix(fingerprint, Math.max(0, minY - baseY));
+
+        fingerprint = hash(fingerprint, blocks, blocks.length);
+        fingerprint = hash(fingerprint, add, 2048);
+        fingerprint = hash(fingerprint, data, 2048);
+        fingerprint = hash(fingerprint, light, 2048);
+
+        fingerprint = mix(fingerprint, aboveExists ? 1 : 0);
+        fingerprint = hash(fingerprint, aboveBlocks, 512);
+        fingerprint = hash(fingerprint, aboveAdd, 256);
+        fingerprint = hash(fingerprint, aboveData, 256);
+        fingerprint = hash(fingerprint, aboveLight, 256);
+        return fingerprint;
+    }
+
+    /**
+     * Section that has the overlays of the last pass, only the state for the
+     * section below is updated.
+     */
+    private void reuseSection(int sectionY, byte[] blocks, byte[] add, byte[] data, byte[] light) {
+        int baseY = sectionY << 4;
+        int top = Math.min(15, topY - baseY);
+        int bottom = Math.max(0, minY - baseY);
+
+        if (top < 15) {
+            clearColumns();
+        }
+        // the state only depends on the two lowest layers scanned
+        for (int y = Math.min(top, bottom + 1); y >= bottom; y--) {
+            int layer = y << 8;
+            for (int column = 0; column < 256; column++) {
+                if (baseY + y > columnTop[column]) {
+                    clearColumn(column);
+                }
+                else {
+                    updateColumn(column, getSurface(blocks, add, data, layer | column));
+                }
+            }
+        }
+        setAbove(true, blocks, add, data, light);
+    }
+
+    /**
+     * @param sectionY section index (y >> 4)
+     * @param blocks lower 8 bits of the block ids
+     * @param add upper 4 bits of the block ids, may be null
+     * @param data block metadata
+     * @param light block or sky light array, may be null
+     */
+    private void scanSection(int sectionY, byte[] blocks, byte[] add, byte[] data, byte[] light) {
+        int baseY = sectionY << 4;
+        int top = Math.min(15, topY - baseY);
+        int bottom = Math.max(0, minY - baseY);
+
+        if (top < 15) {
+            // the window begins in this section, the block above it counts as air
+            clearColumns();
+        }
+        blocksScanned += Math.max(0, top - bottom + 1) * 256;
+
+        for (int y = top; y >= bottom; y--) {
+            int layer = y << 8;
+            for (int column = 255; column >= 0; column--) {
+                if (baseY + y > columnTop[column]) {
+                    // above the window of the column, counts as air
+                    clearColumn(column);
+                    continue;
+                }
+                int index = layer | column;
+                int surface = getSurface(blocks, add, data, index);
+
+                if (spawnableOnly) {
+                    if (LightLevelOverlaySurfaceTable.isSpawnFloor(surface) &&
+                            LightLevelOverlaySurfaceTable.canSpawnIn(previous[column], previous2[column])) {
+                        addSpawnOverlay(surface, previous[column], baseY + y, column, index, light);
+                    }
+                }
+                else if (LightLevelOverlaySurfaceTable.isSurface(surface) &&
+                        !LightLevelOverlaySurfaceTable.isSurface(previous[column])) {
+                    addOverlay(surface, baseY + y, column, index, light);
+                }
+                updateColumn(column, surface);
+            }
+        }
+
+        setAbove(true, blocks, add, data, light);
+    }
+
+    private void updateColumn(int column, int surface) {
+        previous2[column] = previous[column];
+        previous[column] = surface;
+    }
+
+    private void clearColumn(int column) {
+        previous[column] = 0;
+        previous2[column] = 0;
+    }
+
+    private void clearColumns() {
+        for (int column = 0; column < 256; column++) {
+            clearColumn(column);
+        }
+    }
+
+    private int getSurface(byte[] blocks, byte[] add, byte[] data, int index) {
+        int id = blocks[index] & 255;
+        if (add != null) {
+            id |= getNibble(add, index) << 8;
+        }
+        return surfaces[id << 4 | getNibble(data, index)];
+    }
+
+    private void setAbove(boolean exists, byte[] blocks, byte[] add, byte[] data, byte[] light) {
+        aboveExists = exists;
+        aboveBlocks = blocks;
+        aboveAdd = add;
+        aboveData = data;
+        aboveLight = light;
+    }
+
+    private void addOverlay(int surface, int y, int column, int index, byte[] light) {
+        double blockHeight = LightLevelOverlaySurfaceTable.getHeight(surface);
+
+        // the light level of the block above it, thats for
+        // snow/pressure plates vs. upsidedown-halfslabs
+        int level;
+        if (LightLevelOverlaySurfaceTable.isOverlayBlock(surface) && blockHeight < .5) {
+            level = getLight(light, true, index, column, y);
+        }
+        else {
+            level = getLightAbove(y, column, index, light);
+        }
+        emitOverlay(y, column, blockHeight, level);
+    }
+
+    /**
+     * Overlay for a floor with space above it, drawn on top of the snow
+     * layer or pressure plate lying on it.
+     *
+     * @param above surface of the block above the floor
+     */
+    private void addSpawnOverlay(int floor, int above, int y, int column, int index, byte[] light) {
+        int level = getLightAbove(y, column, index, light);
+        if (LightLevelOverlaySurfaceTable.isSurface(above)) {
+            emitOverlay(y + 1, column, LightLevelOverlaySurfaceTable.getHeight(above), level);
+        }
+        else {
+            emitOverlay(y, column, LightLevelOverlaySurfaceTable.getHeight(floor), level);
+        }
+    }
+
+    private void emitOverlay(int y, int column, double blockHeight, int level) {
+        if (level <= showLightlevelUpto) {
+            overlays.addOverlay(worldX | (column & 15), y, worldZ | (column >> 4), blockHeight, level + textureRow * 16);
+        }
+    }
+
+    private int getLightAbove(int y, int column, int index, byte[] light) {
+        if ((y & 15) < 15) {
+            return getLight(light, true, index + 256, column, y + 1);
+        }
+        if (y == 255) {
+            // clamped to the world height like World.getSavedLightValue()
+            return getLight(light, true, index, column, y);
+        }
+        return getLight(aboveLight, aboveExists, column, column, y + 1);
+    }
+
+    private int getLight(byte[] light, boolean exists, int index, int column, int y) {
+        if (light != null) {
+            return getNibble(light, index);
+        }
+        // like Chunk.getSavedLightValue() without section
+        if (!exists && useSkyLightlevel && y >= heightMap[column]) {
+            return 15;
+        }
+        return 0;
+    }
+
+    private static long mix(long fingerprint, int value) {
+        return (fingerprint + value) * 0x9e3779b97f4a7c15L;
+    }
+
+    /**
+     * Hashes length bytes of the array, a multiple of 16, 8 bytes per step
+     * in two lanes so the multiplies don't all wait for each other.
+     *
+     * The multiplies only carry upwards, a flipped top bit would only flip
+     * the top bit of the lane and two of them would cancel out. The shift
+     * after every multiply brings the high bits down into the next one.
+     */
+    private static long hash(long fingerprint, byte[] array, int length) {
+        if (array == null) {
+            return mix(fingerprint, -1);
+        }
+        long lane0 = fingerprint;
+        long lane1 = ~fingerprint;
+        for (int i = 0; i < length; i += 16) {
+            lane0 = (lane0 ^ getLong(array, i)) * 0x100000001b3L;
+            lane0 ^= lane0 >>> 29;
+            lane1 = (lane1 ^ getLong(array, i + 8)) * 0x100000001b3L;
+            lane1 ^= lane1 >>> 29;
+        }
+        fingerprint = (lane0 ^ Long.rotateLeft(lane1, 32)) * 0x9e3779b97f4a7c15L;
+        return mix(fingerprint, length);
+    }
+
+    private static long getLong(byte[] array, int i) {
+        return (array[i] & 255L) | (array[i + 1] & 255L) << 8 | (array[i + 2] & 255L) << 16 |
+            (array[i + 3] & 255L) << 24 | (array[i + 4] & 255L) << 32 | (array[i + 5] & 255L) << 40 |
+            (array[i + 6] & 255L) << 48 | (array[i + 7] & 255L) << 56;
+    }
+
+    private static int getNibble(byte[] nibbles, int index) {
+        return (nibbles[index >> 1] >> ((index & 1) << 2)) & 15;
+    }
+}
@@ -1,5 +1,7 @@
 package cc.apoc.lloverlay;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 
 import org.lwjgl.input.Mouse;
@@ -29,8 +31,13 @@ public class LightLevelOverlaySettingsScreen extends GuiScreen {
     private static final int BUTTON_HOTKEY = 5;
     private static final int BUTTON_RENDERER = 6;
     private static final int BUTTON_DRAW_CHUNKS = 7;
-    private static final int BUTTON_GENERATE_INTERVAL = 8;
+    private static final int BUTTON_GENERATE_DELAY = 8;
     private static final int BUTTON_RESET = 9;
+    private static final int BUTTON_DRAW_DEPTH = 10;
+    private static final int BUTTON_SPAWNABLE_ONLY = 11;
+    private static final int BUTTON_DETAIL_DISTANCE = 12;
+    private static final int BUTTON_METRICS = 13;
+    private static final int BUTTON_EXPORT_METRICS = 14;
     private static final int BUTTON_DONE = 200;
     
     private GuiButton hotkeyButton;
@@ -58,6 +65,17 @@ public class LightLevelOverlaySettingsScreen extends GuiScreen {
         buttonList.add(new GuiArrayButton<String>(BUTTON_SKYLIGHT, getGridX(0), getGridY(2), "Use Skylight: %s", 
                 new String[] { "OFF", "ON" }, config.isUseSkyLightlevel() ? 1 : 0));
         
+        Integer[] drawDepthOptions = new Integer[] { 16, 32, 48, 64, 96, 128, 256 };
+        
+        buttonList.add(new GuiArrayButton<Integer>(BUTTON_DRAW_DEPTH, getGridX(0), getGridY(3), "Render Depth: %d Blocks", 
+                drawDepthOptions, Arrays.asList(drawDepthOptions).indexOf(config.getDrawDepth())));
+        
+        buttonList.add(new GuiArrayButton<String>(BUTTON_SPAWNABLE_ONLY, getGridX(0), getGridY(4), "Spawnable Only: %s", 
+                new String[] { "OFF", "ON" }, config.isSpawnableOnly() ? 1 : 0));
+        
+        buttonList.add(new GuiArrayButton<String>(BUTTON_METRICS, getGridX(0), getGridY(5), "Metrics HUD: %s", 
+                new String[] { "OFF", "ON" }, config.isShowMetrics() ? 1 : 0));
+        
         addButton(BUTTON_RELOAD, 0, 6, "Reload Configuration");
 
         // right column
@@ -65,20 +83,29 @@ public class LightLevelOverlaySettingsScreen extends GuiScreen {
         hotkeyButton = new GuiSmallButton(BUTTON_HOTKEY, getGridX(1), getGridY(0), "Hotkey: " + config.getHotkeyString());
         buttonList.add(hotkeyButton);
 
-        String[] rendererOptions = new String[] { "auto", "fast", "vanilla" };
+        String[] rendererOptions = new String[] { "auto", "fast", "vanilla", "instanced" };
         
         buttonList.add(new GuiArrayButton<String>(BUTTON_RENDERER, getGridX(1), getGridY(1), "Renderer: %s", 
                 rendererOptions, Arrays.asList(rendererOptions).indexOf(config.getRendererString())));
         
-        Integer[] drawChunksOptions = new Integer[] { 2, 4, 6, 8, 16 };
+        // auto picks the distance between minDrawChunks and maxDrawChunks
+        String[] drawChunksOptions = new String[] { "2 Chunks", "4 Chunks", "6 Chunks", "8 Chunks", "16 Chunks", "auto" };
+        String drawChunks = config.isAutoDrawChunks() ? "auto" : config.getDrawChunks() + " Chunks";
         
-        buttonList.add(new GuiArrayButton<Integer>(BUTTON_DRAW_CHUNKS, getGridX(1), getGridY(2), "Render Distance: %d Chunks", 
-                drawChunksOptions, Arrays.asList(drawChunksOptions).indexOf(config.getDrawChunks())));
+        buttonList.add(new GuiArrayButton<String>(BUTTON_DRAW_CHUNKS, getGridX(1), getGridY(2), "Render Distance: %s", 
+                drawChunksOptions, Arrays.asList(drawChunksOptions).indexOf(drawChunks)));
         
-        Integer[] renderIntervalOptions = new Integer[] { 150, 250, 500, 1000, 2000, 3000, 4000, 5000 };
+        Integer[] generateDelayOptions = new Integer[] { 0, 25, 50, 100, 250, 500 };
         
-        buttonList.add(new GuiArrayButton<Integer>(BUTTON_GENERATE_INTERVAL, getGridX(1), getGridY(3), "Generate Interval: %dms", 
-                renderIntervalOptions, Arrays.asList(renderIntervalOptions).indexOf(config.getGenerateInterval())));
+        buttonList.add(new GuiArrayButton<Integer>(BUTTON_GENERATE_DELAY, getGridX(1), getGridY(3), "Generate Delay: %dms", 
+                generateDelayOptions, Arrays.asList(generateDelayOptions).indexOf(config.getGenerateDelay())));
+        
+        Integer[] detailDistanceOptions = new Integer[] { 2, 4, 6, 8, 12, 16 };
+        
+        buttonList.add(new GuiArrayButton<Integer>(BUTTON_DETAIL_DISTANCE, getGridX(1), getGridY(4), "Detail Distance: %d Chunks", 
+                detailDistanceOptions, Arrays.asList(detailDistanceOptions).indexOf(config.getDetailDistance())));
+        
+        addButton(BUTTON_EXPORT_METRICS, 1, 5, "Export Metrics (CSV)");
         
         addButton(BUTTON_RESET, 1, 6, "Reset to Defaults");
 
@@ -120,6 +147,24 @@ public class LightLevelOverlaySettingsScreen extends GuiScreen {
         case BUTTON_SKYLIGHT:
             config.setUseSkyLightlevel(((GuiArrayButton<String>) button).getValue().equals("ON"));
             break;
+        case BUTTON_SPAWNABLE_ONLY:
+            config.setSpawnableOnly(((GuiArrayButton<String>) button).getValue().equals("ON"));
+            break;
+        case BUTTON_METRICS:
+            config.setShowMetrics(((GuiArrayButton<String>) button).getValue().equals("ON"));
+            break;
+        case BUTTON_EXPORT_METRICS:
+            File file = new File(mc.mcDataDir, "lloverlay-metrics-" + System.currentTimeMillis() + ".csv");
+            try {
+                LightLevelOverlayMetrics.getInstance().writeCsv(file);
+                System.out.println("lloverlay metrics exported to " + file);
+                button.displayString = "Metrics Exported";
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                button.displayString = "Export failed";
+            }
+            break;
             
         case BUTTON_HOTKEY:
             waitForHotkey = true;
@@ -132,10 +177,20 @@ public class LightLevelOverlaySettingsScreen extends GuiScreen {
             config.setRenderer(r);
             break;
         case BUTTON_DRAW_CHUNKS:
-            config.setDrawChunks(((GuiArrayButton<Integer>) button).getValue());
+            String drawChunksValue = ((GuiArrayButton<String>) button).getValue();
+            config.setAutoDrawChunks(drawChunksValue.equals("auto"));
+            if (!config.isAutoDrawChunks()) {
+                config.setDrawChunks(Integer.parseInt(drawChunksValue.split(" ")[0]));
+            }
+            break;
+        case BUTTON_DETAIL_DISTANCE:
+            config.setDetailDistance(((GuiArrayButton<Integer>) button).getValue());
+            break;
+        case BUTTON_DRAW_DEPTH:
+            config.setDrawDepth(((GuiArrayButton<Integer>) button).getValue());
             break;
-        case BUTTON_GENERATE_INTERVAL:
-            config.setGenerateInterval(((GuiArrayButton<Integer>) button).getValue());
+        case BUTTON_GENERATE_DELAY:
+            config.setGenerateDelay(((GuiArrayButton<Integer>) button).getValue());
             break;
             
         case BUTTON_RESET:
@@ -155,6 +210,7 @@ public class LightLevelOverlaySettingsScreen extends GuiScreen {
         case BUTTON_DONE:
         default:
             config.save();
+            LightLevelOverlay.getInstance().configChanged();
             this.mc.displayGuiScreen((GuiScreen) null);
             this.mc.setIngameFocus();
         }
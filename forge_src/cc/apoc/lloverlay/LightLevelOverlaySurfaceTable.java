@@ -0,0 +1,170 @@
+package cc.apoc.lloverlay;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockBasePressurePlate;
+import net.minecraft.block.BlockButton;
+import net.minecraft.block.BlockHalfSlab;
+import net.minecraft.block.BlockHopper;
+import net.minecraft.block.BlockPistonBase;
+import net.minecraft.block.BlockSign;
+import net.minecraft.block.BlockSnow;
+import net.minecraft.block.BlockStairs;
+import net.minecraft.block.BlockWeb;
+
+/**
+ * Lookup table of the surfaces overlays are drawn onto.
+ *
+ * Maps block ID and metadata to the height of the top surface of the block,
+ * or 0 for blocks without overlay (air, plants, torches...), and whether mobs
+ * can spawn on or inside the block. The table is built once per world on the
+ * client thread, generation then needs a single array read per block and
+ * never touches the (shared) block bounds.
+ */
+class LightLevelOverlaySurfaceTable {
+    // surface height in 1/64 blocks, 0 = not a surface
+    public static final int HEIGHT_MASK = 0x7f;
+    public static final int HEIGHT_UNITS = 64;
+    // set for blocks from the overlay block list (snow, carpet, slabs...)
+    public static final int OVERLAY_BLOCK = 0x80;
+    // solid top surface mobs can spawn on (not bedrock)
+    public static final int SPAWN_FLOOR = 0x100;
+    // has a collision box, mobs can't spawn with it at their feet or head
+    public static final int COLLIDES = 0x200;
+    // mobs can't spawn with it at their feet
+    public static final int LIQUID = 0x400;
+    // floor that only gets an overlay in the spawnable only mode
+    // (upside-down stairs, hoppers), no surface otherwise
+    public static final int SPAWN_FLOOR_ONLY = 0x800;
+
+    private short[] table = new short[4096 << 4];
+
+    /**
+     * Builds the table for the opaque blocks and the configured overlay blocks.
+     *
+     * Block bounds are changed while building, only call this from the client thread.
+     */
+    public LightLevelOverlaySurfaceTable(int[] overlayBlocks) {
+        for (int id = 1; id < Block.blocksList.length; id++) {
+            Block block = Block.blocksList[id];
+            if (block == null) continue;
+
+            // SpawnerAnimals.canCreatureTypeSpawnAtLocation() and the
+            // collision check of EntityLiving.getCanSpawnHere()
+            int liquid = block.blockMaterial.isLiquid() ? LIQUID : 0;
+
+            boolean overlayBlock = contains(overlayBlocks, id);
+            boolean opaque = block.isOpaqueCube();
+            for (int metadata = 0; metadata < 16; metadata++) {
+                int spawn = liquid | (hasCollision(block, metadata) ? COLLIDES : 0);
+                boolean solidTop = hasSolidTopSurface(block, metadata);
+                boolean floorOnly = !opaque && !overlayBlock;
+                if (floorOnly && !solidTop) {
+                    table[id << 4 | metadata] = (short) spawn;
+                    continue;
+                }
+                double height = solidTop ? 1.0 : getBoundsHeight(block, metadata);
+                int units = (int) Math.round(height * HEIGHT_UNITS);
+                units = Math.max(1, Math.min(HEIGHT_UNITS, units));
+                int flags = spawn | (overlayBlock ? OVERLAY_BLOCK : 0) | (floorOnly ? SPAWN_FLOOR_ONLY : 0);
+                if (solidTop && id != Block.bedrock.blockID) {
+                    flags |= SPAWN_FLOOR;
+                }
+                table[id << 4 | metadata] = (short) (units | flags);
+            }
+        }
+    }
+
+    /**
+     * Table indexed by (blockID << 4 | metadata).
+     */
+    public short[] getTable() {
+        return table;
+    }
+
+    public int get(int blockID, int metadata) {
+        return table[blockID << 4 | metadata];
+    }
+
+    public static double getHeight(int surface) {
+        return (surface & HEIGHT_MASK) / (double) HEIGHT_UNITS;
+    }
+
+    public static boolean isSurface(int surface) {
+        return (surface & HEIGHT_MASK) != 0 && (surface & SPAWN_FLOOR_ONLY) == 0;
+    }
+
+    public static boolean isOverlayBlock(int surface) {
+        return (surface & OVERLAY_BLOCK) != 0;
+    }
+
+    public static boolean isSpawnFloor(int surface) {
+        return (surface & SPAWN_FLOOR) != 0;
+    }
+
+    /**
+     * Whether mobs can spawn with the blocks at their feet and head, the
+     * floor below is checked with isSpawnFloor().
+     */
+    public static boolean canSpawnIn(int feet, int head) {
+        return (feet & (COLLIDES | LIQUID)) == 0 && (head & COLLIDES) == 0;
+    }
+
+    /**
+     * Same as World.doesBlockHaveSolidTopSurface() for a block with the metadata.
+     */
+    private boolean hasSolidTopSurface(Block block, int metadata) {
+        if (block.blockMaterial.isOpaque() && block.renderAsNormalBlock())
+            return true;
+        if (block instanceof BlockStairs)
+            return (metadata & 4) == 4;
+        if (block instanceof BlockHalfSlab)
+            return (metadata & 8) == 8;
+        if (block instanceof BlockHopper)
+            return true;
+        if (block instanceof BlockSnow)
+            return (metadata & 7) == 7;
+        return false;
+    }
+
+    /**
+     * Whether the block has a collision box a mob would collide with.
+     * getCollisionBoundingBoxFromPool() needs a world position, so the
+     * vanilla blocks without one are known here: pressure plates, buttons,
+     * signs, cobwebs and a single snow layer, besides the materials that
+     * don't block movement (air, plants, torches, rails, liquids...).
+     */
+    private boolean hasCollision(Block block, int metadata) {
+        if (block instanceof BlockSnow)
+            return (metadata & 7) != 0;
+        if (block instanceof BlockBasePressurePlate || block instanceof BlockButton ||
+            block instanceof BlockSign || block instanceof BlockWeb)
+            return false;
+        return block.blockMaterial.blocksMovement();
+    }
+
+    /**
+     * Height of blocks without solid top, setBlockBoundsBasedOnState() needs
+     * a world position, so metadata dependent heights of vanilla blocks are
+     * known here and the item bounds are used for everything else.
+     */
+    private double getBoundsHeight(Block block, int metadata) {
+        if (block instanceof BlockSnow)
+            return (2 * (1 + (metadata & 7))) / 16.0;
+        if (block instanceof BlockBasePressurePlate)
+            return metadata > 0 ? 0.03125 : 0.0625; // pressed : released
+        if (block instanceof BlockHalfSlab)
+            return 0.5; // upside-down slabs have a solid top
+        if (block instanceof BlockPistonBase && (metadata & 8) != 0 && (metadata & 7) == 1)
+            return 0.75; // extended upwards
+
+        block.setBlockBoundsForItemRender();
+        return block.getBlockBoundsMaxY();
+    }
+
+    private static boolean contains(int[] array, int value) {
+        for (int element : array)
+            if (element == value)
+                return true;
+        return false;
+    }
+}
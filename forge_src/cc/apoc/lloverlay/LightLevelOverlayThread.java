@@ -1,85 +1,155 @@
 package cc.apoc.lloverlay;
 
-import net.minecraft.block.Block;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
 import net.minecraft.client.Minecraft;
-import net.minecraft.client.renderer.RenderBlocks;
-import net.minecraft.world.EnumSkyBlock;
+import net.minecraft.world.ChunkCoordIntPair;
+import net.minecraft.world.World;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.IChunkProvider;
+import net.minecraft.world.chunk.NibbleArray;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
 
 public class LightLevelOverlayThread extends Thread {
 
     
     
 
-    /**
-     * List of non-opaque blocks we draw overlays onto.
-     */
-    private static int[] OVERLAY_BLOCKS = new int[] {
-        Block.tilledField.blockID,
-        Block.woodSingleSlab.blockID, 
-        Block.stoneSingleSlab.blockID,
-        Block.glass.blockID, 
-        Block.snow.blockID, 
-        Block.ice.blockID,
-        Block.glowStone.blockID, 
-        Block.pistonBase.blockID,
-        Block.pistonStickyBase.blockID,
-        Block.pressurePlateStone.blockID,
-        Block.pressurePlatePlanks.blockID,
-        Block.pressurePlateGold.blockID,
-        Block.pressurePlateIron.blockID,
-        Block.daylightSensor.blockID,
-        Block.leaves.blockID,
-        Block.carpet.blockID // carpet
-    };
-    
-    
     private LightLevelOverlayConfig config;
     private LightLevelOverlayRenderer renderer;
     
     private Minecraft mc;
-    private RenderBlocks renderBlocks;
+
+    // built by the client thread whenever a world is loaded
+    private volatile LightLevelOverlaySurfaceTable surfaceTable;
 
     
-    private boolean active;
+    private volatile boolean active;
+
+    // set when the renderer was cleared and needs all chunks again
+    private volatile boolean resendChunks;
+
+    // the last pass ran out of time, the next one starts right away
+    private boolean pending;
+
+    // set by the triggers of a pass, guarded by scheduleLock
+    private final Object scheduleLock = new Object();
+    private boolean scheduled;
+
+    // player position of the last pass trigger, written by the client thread
+    private volatile int triggerChunkX;
+    private volatile int triggerChunkZ;
+    private volatile int triggerSection;
+
+    // generates the chunks of a pass in parallel
+    private ExecutorService workers;
+    private int workerCount;
+    private ThreadLocal<WorkerState> workerState = new ThreadLocal<WorkerState>() {
+        protected WorkerState initialValue() {
+            return new WorkerState();
+        }
+    };
+
+    // chunks of the current ring, reused for every ring
+    private List<ChunkTask> tasks = new ArrayList<ChunkTask>();
+    private List<ChunkTask> batch = new ArrayList<ChunkTask>();
+    private List<ChunkTask> taskPool = new ArrayList<ChunkTask>();
+    private List<LightLevelOverlayChunk> unsent = new ArrayList<LightLevelOverlayChunk>();
+    // chunks out of range, removed after going through the cache
+    private List<LightLevelOverlayChunk> outOfRange = new ArrayList<LightLevelOverlayChunk>();
+
+    // sleeps between the batches of chunks of a pass
+    private LightLevelOverlayThrottle throttle;
+    // time slept by the throttle in the current pass, in ns
+    private long pauseTime;
+
+    private LightLevelOverlayWorldListener worldListener;
 
+    // chunks marked by the world listener, written by the client thread
+    private Set<Long> dirtyChunks = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
 
+    // overlays of the chunks around the player, by chunk coordinates
+    private LightLevelOverlayChunkMap<LightLevelOverlayChunk> chunkCache = new LightLevelOverlayChunkMap<LightLevelOverlayChunk>();
 
+    private LightLevelOverlayMetrics metrics = LightLevelOverlayMetrics.getInstance();
 
-    public LightLevelOverlayThread(LightLevelOverlayConfig config, LightLevelOverlayRenderer renderer) {
+    // radius of the overlays, adjusted by the render thread in the auto mode
+    private LightLevelOverlayRadiusController radius;
+
+    // merges the overlays of chunks beyond the detail distance
+    private LightLevelOverlayMerger merger = new LightLevelOverlayMerger();
+
+    // the cached overlays are only valid for the world, player section and
+    // settings they were generated with, not the radius: chunks out of range
+    // are dropped and the new ones generated like after a move
+    private World cacheWorld;
+    private LightLevelOverlaySurfaceTable cacheSurfaceTable;
+    private int cachePlayerSection;
+    private int cacheDrawDepth;
+    private int cacheShowLightlevelUpto;
+    private int cacheTextureRow;
+    private boolean cacheUseSkyLightlevel;
+    private boolean cacheSpawnableOnly;
+
+
+    public LightLevelOverlayThread(LightLevelOverlayConfig config, LightLevelOverlayRenderer renderer,
+            LightLevelOverlayRadiusController radius, LightLevelOverlayThrottle throttle) {
         this.config = config;
         this.renderer = renderer; 
+        this.radius = radius;
+        this.throttle = throttle;
         setName("lloverlay");
+        // the client, server and chunk loading threads go first
+        setPriority(MIN_PRIORITY);
         mc = Minecraft.getMinecraft();
+        worldListener = new LightLevelOverlayWorldListener(this);
+
+        // leaves a core to the client thread
+        workerCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            private int count = 0;
+            public Thread newThread(Runnable runnable) {
+                Thread worker = new Thread(runnable, "lloverlay-worker-" + (count++));
+                worker.setDaemon(true);
+                worker.setPriority(MIN_PRIORITY);
+                return worker;
+            }
+        });
     }
     
     
     
-    public boolean isOverlayBlock(Block block) {
-        if (block == null)
-            return false;
-        
-        for (int id : OVERLAY_BLOCKS)
-            if (block.blockID == id)
-                return true;
-        return false;
-    }
-
-    
+    /**
+     * Generates the overlays whenever something changed: the player entered
+     * another chunk or block level, blocks or light changed in range, the
+     * settings changed or the overlay got activated. Waits without any work
+     * in between.
+     */
     public void run() {
         try {
             while (true) {
-                if (active && mc.thePlayer != null) {
+                waitForSchedule();
+                if (active && mc.thePlayer != null && mc.theWorld != null) {
                     generateByChunk();
                 }
-                
-                sleep(config.getGenerateInterval());
             }
         }
         catch (Exception e) {
             e.printStackTrace();
         }
+        finally {
+            workers.shutdownNow();
+        }
         
         debugMessage("overlay thread stopped");
     }
@@ -87,106 +157,403 @@ public class LightLevelOverlayThread extends Thread {
     
     
 
+    /**
+     * Waits for the next trigger and the generate delay after it, triggers
+     * within the delay are handled by the same pass. A pass that ran out
+     * of time is continued right away.
+     */
+    private void waitForSchedule() throws InterruptedException {
+        if (pending) {
+            pending = false;
+            return;
+        }
+        synchronized (scheduleLock) {
+            while (!scheduled) {
+                scheduleLock.wait();
+            }
+        }
+        int delay = config.getGenerateDelay();
+        if (delay > 0) {
+            sleep(delay);
+        }
+        synchronized (scheduleLock) {
+            scheduled = false;
+        }
+    }
+
+    /**
+     * Starts a generation pass after the generate delay.
+     */
+    public void schedule() {
+        synchronized (scheduleLock) {
+            scheduled = true;
+            scheduleLock.notifyAll();
+        }
+    }
+
+    /**
+     * Schedules a pass whenever the player enters another chunk or section,
+     * called by the client thread every frame.
+     */
+    public void updatePlayerPosition(int chunkX, int chunkZ, int y) {
+        if (chunkX != triggerChunkX || chunkZ != triggerChunkZ || y >> 4 != triggerSection) {
+            triggerChunkX = chunkX;
+            triggerChunkZ = chunkZ;
+            triggerSection = y >> 4;
+            if (active) {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Generates the chunks around the player in rings, nearest first. The
+     * renderer gets the chunks of every ring as soon as it is done, when
+     * the time budget is used up the remaining rings are left for the next pass.
+     */
     private void generateByChunk() throws Exception {
-        if (renderBlocks == null) return;
-        // indicates the renderer to get a new set of overlays
-        renderer.startGenerate();
+        LightLevelOverlaySurfaceTable surfaces = surfaceTable;
+        if (surfaces == null) return;
 
         long tStart = System.currentTimeMillis();
+        long passStart = System.nanoTime();
+        pauseTime = 0;
 
-        int playerY = (int) Math.floor(mc.thePlayer.posY);
+        World world = mc.theWorld;
+        // the scan window only moves by whole sections, moving up or down
+        // within one doesn't rescan every chunk in range
+        int playerSection = (int) Math.floor(mc.thePlayer.posY) >> 4;
         
         int playerChunkX = mc.thePlayer.chunkCoordX;
         int playerChunkZ = mc.thePlayer.chunkCoordZ;
         
         debugMessage("start generation by chunk");
 
-        int distance = config.getDrawChunks()*16;
-        int chunkDistance = config.getDrawChunks();
-        
-        // collect block & lighting information per chunks around the player
-        IChunkProvider provider = mc.theWorld.getChunkProvider();
-        for (int chunkX = playerChunkX - chunkDistance; chunkX <= playerChunkX + chunkDistance; chunkX++) {
-            for (int chunkZ = playerChunkZ - chunkDistance; chunkZ <= playerChunkZ + chunkDistance; chunkZ++) {
-                if (provider.chunkExists(chunkX, chunkZ)) {
-                    Chunk chunk = provider.provideChunk(chunkX, chunkZ);
-                    
-                    for (int x = 0; x < 16; x++) {
-                        for (int z = 0; z < 16; z++) {
-                            Block previous = null;
-                            // begin iteration above the players head (small optimization)
-                            for (int y = playerY+3; y > playerY+3-distance && y >= 0; y--) {
-                                
-                                // local chunk coords => world coords
-                                int wx = chunkX * 16 + x;
-                                int wz = chunkZ * 16 + z;
-                                
-                                Block block = Block.blocksList[chunk.getBlockID(wx & 15, y, wz & 15)];
-                                
-                                // ignore air blocks
-                                if (block != null) {
-                                    // check if it is a block where we draw onto (stone,grass,pistons,pressure plates)
-                                    if (block.isOpaqueCube() || isOverlayBlock(block)) {
-                                        if (previous == null) {
-                                            // the height of the block
-                                            double blockHeight = 1.0;
-
-                                            
-                                            boolean solidTop = mc.theWorld.doesBlockHaveSolidTopSurface(wx, y, wz);
-                                            if (!solidTop) {
-                                                block.setBlockBoundsBasedOnState(renderBlocks.blockAccess, wx, y, wz);
-                                                blockHeight = block.getBlockBoundsMaxY();
-                                            }
-                                            
-
-                                            
-                                            // the light level of the block above it
-                                            
-                                            int texture;
-                                            int blockLightLevel;
-                                            // thats for snow/pressure plates vs. upsidedown-halfslabs
-                                            if (isOverlayBlock(block)) {
-                                                if (blockHeight >= .5) {
-                                                    blockLightLevel = y + 1;
-                                                }
-                                                else {
-                                                    blockLightLevel = y;
-                                                }
-                                            }
-                                            else {
-                                                blockLightLevel = y + 1;
-                                            }
-                                            if (config.isUseSkyLightlevel()) {
-                                                texture = mc.theWorld.getSavedLightValue(EnumSkyBlock.Sky, wx, blockLightLevel, wz); 
-                                            }
-                                            else {
-                                                texture = mc.theWorld.getSavedLightValue(EnumSkyBlock.Block, wx, blockLightLevel, wz);
-                                            }
-                                            
-                                            if (texture <= config.getShowLightlevelUpto()) {
-                                                texture += (config.getTextureRow() * 16);
-                                                renderer.addOverlay(wx, y, wz, blockHeight, texture);
-                                            }
-                                        }
-                                    }
-                                    else { // not valid to draw onto? must be an airblock
-                                        block = null;
-                                    }
-                                }
-                                previous = block;
-                            }
+        int chunkDistance = radius.getRadius();
+        int budget = config.getGenerateBudget();
+
+        boolean sameWorld = world == cacheWorld && surfaces == cacheSurfaceTable;
+        if (!isCacheValid(world, surfaces, playerSection)) {
+            debugMessage("invalidate chunk cache");
+            for (int slot = 0; slot < chunkCache.getCapacity(); slot++) {
+                LightLevelOverlayChunk overlays = chunkCache.getValue(slot);
+                if (overlays == null) continue;
+                if (sameWorld) {
+                    // the old overlays stay visible until their ring is generated again
+                    overlays.dirty = true;
+                }
+                else {
+                    renderer.removeChunk(overlays.chunkX, overlays.chunkZ);
+                }
+            }
+            if (!sameWorld) {
+                chunkCache.clear();
+            }
+        }
+
+        if (resendChunks) {
+            resendChunks = false;
+            for (int slot = 0; slot < chunkCache.getCapacity(); slot++) {
+                LightLevelOverlayChunk overlays = chunkCache.getValue(slot);
+                if (overlays != null) overlays.sent = false;
+            }
+        }
+
+        // flag every cached chunk that changed since the last pass
+        if (!dirtyChunks.isEmpty()) {
+            for (Iterator<Long> it = dirtyChunks.iterator(); it.hasNext();) {
+                LightLevelOverlayChunk overlays = chunkCache.get(it.next());
+                it.remove();
+                if (overlays != null) {
+                    overlays.dirty = true;
+                }
+            }
+        }
+
+        // forget chunks that are out of range now
+        outOfRange.clear();
+        for (int slot = 0; slot < chunkCache.getCapacity(); slot++) {
+            LightLevelOverlayChunk overlays = chunkCache.getValue(slot);
+            if (overlays != null &&
+                (Math.abs(overlays.chunkX - playerChunkX) > chunkDistance ||
+                 Math.abs(overlays.chunkZ - playerChunkZ) > chunkDistance)) {
+                outOfRange.add(overlays);
+            }
+        }
+        for (int i = 0; i < outOfRange.size(); i++) {
+            LightLevelOverlayChunk overlays = outOfRange.get(i);
+            renderer.removeChunk(overlays.chunkX, overlays.chunkZ);
+            chunkCache.remove(ChunkCoordIntPair.chunkXZ2Int(overlays.chunkX, overlays.chunkZ));
+        }
+        outOfRange.clear();
+
+        int generatedChunks = 0;
+        int ring = 0;
+        for (; ring <= chunkDistance; ring++) {
+            // indicates the renderer to get a new set of overlays, the
+            // chunks removed above are published with the first ring
+            renderer.startGenerate();
+            generatedChunks += generateRing(world, surfaces, playerChunkX, playerChunkZ, ring, playerSection);
+
+            // publish the ring
+            renderer.stopGenerate();
+
+            if (budget > 0 && ring < chunkDistance && System.currentTimeMillis() - tStart >= budget) {
+                pending = true;
+                break;
+            }
+        }
+
+        int overlayCount = 0;
+        for (int slot = 0; slot < chunkCache.getCapacity(); slot++) {
+            LightLevelOverlayChunk overlays = chunkCache.getValue(slot);
+            if (overlays != null) overlayCount += overlays.getSize();
+        }
+
+        metrics.passes.add(1);
+        // the time the pass worked, without the pauses of the throttle
+        long passTime = System.nanoTime() - passStart - pauseTime;
+        metrics.passTime.record(passTime);
+        radius.passFinished(passTime, generatedChunks);
+        metrics.chunksScanned.add(generatedChunks);
+
+        debugMessage("generation took %dms for %d overlays (%d of %d chunks generated, %d of %d rings)", 
+                System.currentTimeMillis() - tStart, overlayCount, generatedChunks, chunkCache.size(),
+                Math.min(ring + 1, chunkDistance + 1), chunkDistance + 1);
+    }
+
+    /**
+     * Generates the chunks of one ring (the chunks ring chunks away from the
+     * player in x or z) that are new in range or changed, and passes them
+     * and every chunk the renderer doesn't have yet to the renderer.
+     * 
+     * Rings beyond the detail distance are passed as merged overlays.
+     * 
+     * @return number of chunks generated
+     */
+    private int generateRing(World world, LightLevelOverlaySurfaceTable surfaces, 
+            int playerChunkX, int playerChunkZ, int ring, int playerSection) throws Exception {
+        // collect block & lighting information per chunks around the player,
+        // only chunks that are new in range or changed are generated again
+        tasks.clear();
+        unsent.clear();
+        boolean merged = ring > config.getDetailDistance();
+        IChunkProvider provider = world.getChunkProvider();
+        for (int chunkX = playerChunkX - ring; chunkX <= playerChunkX + ring; chunkX++) {
+            // only the border of the square around the player
+            int step = (chunkX == playerChunkX - ring || chunkX == playerChunkX + ring) ? 1 : Math.max(1, 2 * ring);
+            for (int chunkZ = playerChunkZ - ring; chunkZ <= playerChunkZ + ring; chunkZ += step) {
+                long key = ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ);
+                LightLevelOverlayChunk overlays = chunkCache.get(key);
+                if (overlays == null || overlays.dirty) {
+                    Chunk chunk = null;
+                    if (provider.chunkExists(chunkX, chunkZ)) {
+                        chunk = provider.provideChunk(chunkX, chunkZ);
+                    }
+                    // not yet received from the server or unloaded again,
+                    // the listener marks it once it is received
+                    if (chunk == null || chunk.isEmpty()) {
+                        if (overlays != null) {
+                            renderer.removeChunk(chunkX, chunkZ);
+                            chunkCache.remove(key);
                         }
+                        continue;
+                    }
+
+                    if (overlays == null) {
+                        overlays = new LightLevelOverlayChunk(chunkX, chunkZ);
+                        chunkCache.put(key, overlays);
+                    }
+                    if (tasks.size() == taskPool.size()) {
+                        taskPool.add(new ChunkTask());
                     }
+                    ChunkTask task = taskPool.get(tasks.size());
+                    task.set(chunk, surfaces, overlays, playerSection);
+                    tasks.add(task);
+                }
+                else if (!overlays.sent || overlays.sentMerged != merged) {
+                    unsent.add(overlays);
                 }
             }
         }
-        debugMessage("generation took %dms for %d overlays", System.currentTimeMillis() - tStart, renderer.getCacheSize());
-        
-        renderer.stopGenerate();
+
+        // every worker generates into the overlays of its own chunk, in
+        // batches of two chunks per worker with a pause after each batch
+        int batchSize = workerCount * 2;
+        for (int start = 0; start < tasks.size(); start += batchSize) {
+            long batchStart = System.nanoTime();
+            batch.clear();
+            for (int i = start; i < Math.min(tasks.size(), start + batchSize); i++) {
+                batch.add(tasks.get(i));
+            }
+            for (Future<LightLevelOverlayChunk> future : workers.invokeAll(batch)) {
+                future.get();
+            }
+            long pauseStart = System.nanoTime();
+            throttle.pause(pauseStart - batchStart);
+            pauseTime += System.nanoTime() - pauseStart;
+        }
+
+        // pass the changed chunks to the renderer, chunks that got the same
+        // overlays again (same fingerprints) are left as they are
+        for (int i = 0; i < tasks.size(); i++) {
+            LightLevelOverlayChunk overlays = tasks.get(i).overlays;
+            if (overlays.isChanged() || !overlays.sent || overlays.sentMerged != merged) {
+                addChunk(overlays, merged);
+            }
+        }
+        for (int i = 0; i < unsent.size(); i++) {
+            addChunk(unsent.get(i), merged);
+        }
+        return tasks.size();
+    }
+
+    private void addChunk(LightLevelOverlayChunk overlays, boolean merged) {
+        renderer.startChunk(overlays.chunkX, overlays.chunkZ);
+        if (merged) {
+            overlays.renderMerged(renderer, merger);
+        }
+        else {
+            overlays.render(renderer);
+        }
+        renderer.stopChunk();
+        metrics.overlays.add(overlays.getSize());
+        overlays.sent = true;
+        overlays.sentMerged = merged;
+    }
+
+    /**
+     * Generates the overlays of a single chunk on one of the workers, the
+     * tasks are kept in taskPool and set again for every chunk.
+     */
+    private class ChunkTask implements Callable<LightLevelOverlayChunk> {
+        private Chunk chunk;
+        private LightLevelOverlaySurfaceTable surfaces;
+        private LightLevelOverlayChunk overlays;
+        private int playerSection;
+
+        public void set(Chunk chunk, LightLevelOverlaySurfaceTable surfaces,
+                LightLevelOverlayChunk overlays, int playerSection) {
+            this.chunk = chunk;
+            this.surfaces = surfaces;
+            this.overlays = overlays;
+            this.playerSection = playerSection;
+        }
+
+        public LightLevelOverlayChunk call() {
+            generateChunk(chunk, surfaces, overlays, playerSection);
+            // don't keep unloaded chunks around
+            chunk = null;
+            return overlays;
+        }
+    }
+
+    /**
+     * Scanner and section arrays of a worker, used for every chunk it
+     * generates.
+     */
+    private static class WorkerState {
+        public LightLevelOverlayScanner scanner = new LightLevelOverlayScanner();
+        public byte[][] blocks = new byte[16][];
+        public byte[][] add = new byte[16][];
+        public byte[][] data = new byte[16][];
+        public byte[][] light = new byte[16][];
+    }
+
+    private void generateChunk(Chunk chunk, LightLevelOverlaySurfaceTable surfaceTable,
+            LightLevelOverlayChunk overlays, int playerSection) {
+        overlays.dirty = false;
+
+        int distance = config.getDrawDepth();
+        // begin iteration above the players head (small optimization),
+        // nothing above the highest section with blocks. The window spans
+        // the windows of every height within the player's section.
+        int sectionBottom = playerSection << 4;
+        int maxY = Math.min(chunk.getTopFilledSegment()+15, sectionBottom+15+3);
+        int minY = Math.max(0, sectionBottom+3-distance+1);
+
+        // the raw arrays of the sections, empty sections only have their light
+        WorkerState state = workerState.get();
+        ExtendedBlockStorage[] sections = chunk.getBlockStorageArray();
+        for (int sectionY = 0; sectionY < 16; sectionY++) {
+            ExtendedBlockStorage section = sections[sectionY];
+            state.blocks[sectionY] = null;
+            state.add[sectionY] = null;
+            state.data[sectionY] = null;
+            state.light[sectionY] = null;
+            if (section == null) continue;
+
+            NibbleArray light = config.isUseSkyLightlevel() ? section.getSkylightArray() : section.getBlocklightArray();
+            state.light[sectionY] = light != null ? light.data : null;
+            if (!section.isEmpty()) {
+                state.blocks[sectionY] = section.getBlockLSBArray();
+                NibbleArray add = section.getBlockMSBArray();
+                state.add[sectionY] = add != null ? add.data : null;
+                state.data[sectionY] = section.getMetadataArray().data;
+            }
+        }
+
+        LightLevelOverlayScanner scanner = state.scanner;
+        scanner.setSettings(surfaceTable.getTable(), config.getShowLightlevelUpto(), config.getTextureRow(),
+                config.isUseSkyLightlevel(), config.isSpawnableOnly(), !chunk.worldObj.provider.hasNoSky);
+        // sections that didn't change since the last pass keep their overlays
+        scanner.scanChunk(overlays, chunk.heightMap, minY, maxY,
+                state.blocks, state.add, state.data, state.light, true);
+
+        metrics.sectionsScanned.add(scanner.getSectionsScanned());
+        metrics.sectionsReused.add(scanner.getSectionsReused());
+        metrics.blocksScanned.add(scanner.getBlocksScanned());
     }
 
-    public void setRenderBlocks(RenderBlocks renderBlocks) {
-        this.renderBlocks = renderBlocks;
+    /**
+     * Checks if the cached overlays were generated for the current world,
+     * player section and settings, remembers them for the next pass.
+     */
+    private boolean isCacheValid(World world, LightLevelOverlaySurfaceTable surfaces, int playerSection) {
+        boolean valid = world == cacheWorld &&
+            surfaces == cacheSurfaceTable &&
+            playerSection == cachePlayerSection &&
+            config.getDrawDepth() == cacheDrawDepth &&
+            config.getShowLightlevelUpto() == cacheShowLightlevelUpto &&
+            config.getTextureRow() == cacheTextureRow &&
+            config.isUseSkyLightlevel() == cacheUseSkyLightlevel &&
+            config.isSpawnableOnly() == cacheSpawnableOnly;
+
+        cacheWorld = world;
+        cacheSurfaceTable = surfaces;
+        cachePlayerSection = playerSection;
+        cacheDrawDepth = config.getDrawDepth();
+        cacheShowLightlevelUpto = config.getShowLightlevelUpto();
+        cacheTextureRow = config.getTextureRow();
+        cacheUseSkyLightlevel = config.isUseSkyLightlevel();
+        cacheSpawnableOnly = config.isSpawnableOnly();
+        return valid;
+    }
+
+    /**
+     * Marks the chunk to be generated again in the next pass.
+     * 
+     * Called by the world listener from the client thread.
+     */
+    public void markDirty(int chunkX, int chunkZ) {
+        int chunkDistance = radius.getRadius();
+        if (Math.abs(chunkX - triggerChunkX) > chunkDistance ||
+            Math.abs(chunkZ - triggerChunkZ) > chunkDistance) {
+            return;
+        }
+        dirtyChunks.add(ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ));
+        if (active) {
+            schedule();
+        }
+    }
+
+    public LightLevelOverlayWorldListener getWorldListener() {
+        return worldListener;
+    }
+
+    public void setSurfaceTable(LightLevelOverlaySurfaceTable surfaceTable) {
+        this.surfaceTable = surfaceTable;
+        schedule();
     }    
     
     
@@ -196,6 +563,11 @@ public class LightLevelOverlayThread extends Thread {
 
     public void setActive(boolean active) {
         this.active = active;
+        // the renderer is cleared whenever the overlay is toggled
+        resendChunks = true;
+        if (active) {
+            schedule();
+        }
     }
     
     private void debugMessage(String fmt, Object... args) {
@@ -0,0 +1,76 @@
+package cc.apoc.lloverlay;
+
+/**
+ * Keeps the generation within a share of the CPU, so it doesn't show up as
+ * frame time spikes of the game.
+ *
+ * After every batch of chunks the generation thread sleeps in proportion to
+ * the time the batch took, it runs at most generateDutyCycle percent of the
+ * time. While the current frame of the game takes noticeably longer than
+ * the average frame it backs off as well, up to MAX_BACKOFF per batch: the
+ * overlays are late instead of the frames.
+ *
+ * frameStarted() is called by the render thread, pause() by the generation
+ * thread.
+ */
+class LightLevelOverlayThrottle {
+    // weight of a frame in the average frame interval
+    private static final double FRAME_SMOOTHING = 0.02;
+    // frames taking longer than this times the average are a hitch
+    private static final double BACKOFF_FACTOR = 1.5;
+    private static final long BACKOFF_STEP = 10;
+    private static final long MAX_BACKOFF = 250;
+    // longer intervals are pauses of the game (loading, sleeping window),
+    // there are no frames to make way for
+    private static final long MAX_FRAME_INTERVAL = 1000000000L;
+
+    private LightLevelOverlayConfig config;
+
+    // in ns, written by the render thread
+    private volatile double averageInterval = 0;
+    private volatile long lastFrame = 0;
+
+    public LightLevelOverlayThrottle(LightLevelOverlayConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Records the start of a frame of the game.
+     */
+    public void frameStarted(long nanoTime) {
+        long interval = nanoTime - lastFrame;
+        lastFrame = nanoTime;
+        if (interval >= MAX_FRAME_INTERVAL) return;
+
+        averageInterval = averageInterval == 0 ? interval :
+            averageInterval + (interval - averageInterval) * FRAME_SMOOTHING;
+    }
+
+    /**
+     * Gives the CPU back to the game after a batch of chunks that took
+     * nanos to generate.
+     */
+    public void pause(long nanos) throws InterruptedException {
+        int dutyCycle = config.getGenerateDutyCycle();
+        if (dutyCycle < 100) {
+            long sleep = nanos * (100 - dutyCycle) / dutyCycle;
+            Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+        }
+        else {
+            Thread.yield();
+        }
+
+        for (long waited = 0; isFrameSlow() && waited < MAX_BACKOFF; waited += BACKOFF_STEP) {
+            Thread.sleep(BACKOFF_STEP);
+        }
+    }
+
+    /**
+     * Whether the frame rendered right now already takes longer than usual.
+     */
+    private boolean isFrameSlow() {
+        double average = averageInterval;
+        long sinceFrame = System.nanoTime() - lastFrame;
+        return average > 0 && sinceFrame > average * BACKOFF_FACTOR && sinceFrame < MAX_FRAME_INTERVAL;
+    }
+}
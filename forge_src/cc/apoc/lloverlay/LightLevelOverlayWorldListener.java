@@ -0,0 +1,61 @@
+package cc.apoc.lloverlay;
+
+import net.minecraft.client.renderer.texture.IconRegister;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.world.IWorldAccess;
+
+/**
+ * Listens for block and light updates in the client world.
+ *
+ * Registered with World.addWorldAccess() just like RenderGlobal, every
+ * update is forwarded to the generation thread which marks the chunk
+ * as dirty, so it gets generated again in the next pass.
+ */
+public class LightLevelOverlayWorldListener implements IWorldAccess {
+
+    private LightLevelOverlayThread thread;
+
+    public LightLevelOverlayWorldListener(LightLevelOverlayThread thread) {
+        this.thread = thread;
+    }
+
+    // block changes (setBlock, metadata changes)
+    public void markBlockForUpdate(int x, int y, int z) {
+        thread.markDirty(x >> 4, z >> 4);
+    }
+
+    // light updates
+    public void markBlockForRenderUpdate(int x, int y, int z) {
+        thread.markDirty(x >> 4, z >> 4);
+    }
+
+    // chunks received from the server and multi block changes
+    public void markBlockRangeForRenderUpdate(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+            for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+                thread.markDirty(chunkX, chunkZ);
+            }
+        }
+    }
+
+    public void playSound(String sound, double x, double y, double z, float volume, float pitch) {}
+
+    public void playSoundToNearExcept(EntityPlayer player, String sound, double x, double y, double z, float volume, float pitch) {}
+
+    public void spawnParticle(String particle, double x, double y, double z, double velX, double velY, double velZ) {}
+
+    public void onEntityCreate(Entity entity) {}
+
+    public void onEntityDestroy(Entity entity) {}
+
+    public void playRecord(String record, int x, int y, int z) {}
+
+    public void broadcastSound(int type, int x, int y, int z, int data) {}
+
+    public void playAuxSFX(EntityPlayer player, int type, int x, int y, int z, int data) {}
+
+    public void destroyBlockPartially(int entityId, int x, int y, int z, int progress) {}
+
+    public void registerDestroyBlockIcon(IconRegister iconRegister) {}
+}
@@ -0,0 +1,394 @@
+package cc.apoc.lloverlay;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.ImageIO;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+
+/**
+ * Scans the region files of a world without game client, with the same
+ * surfaces and light rules as the overlays in game.
+ *
+ * usage: LightLevelOverlayMapTool <world directory> <output directory> [options]
+ *
+ *   --upto <n>        highest light level that counts as dark (default 7)
+ *   --sky             use the sky light instead of the block light
+ *   --spawnable       only count surfaces mobs can spawn on
+ *   --no-sky          the world has no sky light (nether)
+ *   --min-y <n>       lowest block scanned (default 0)
+ *   --max-y <n>       highest block scanned (default 255)
+ *   --threads <n>     chunks scanned in parallel (default: processors)
+ *   --config <file>   overlay blocks of a lloverlay.properties
+ *
+ * Writes a top-down light map per region, r.<x>.<z>.png with a pixel per
+ * column in the colour of its darkest surface (red 0 to yellow 15,
+ * transparent without one), and chunks.csv with the number of dark
+ * surfaces per chunk.
+ *
+ * Regions are processed one after another: the file is memory mapped and
+ * its chunks are decompressed and scanned in parallel, only the map of a
+ * single region is kept at a time.
+ */
+public class LightLevelOverlayMapTool {
+    private static final Pattern REGION_NAME = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+
+    private static final int SECTOR_BYTES = 4096;
+    private static final int REGION_BLOCKS = 512;
+
+    private File worldDir;
+    private File outputDir;
+    private int showLightlevelUpto = 7;
+    private boolean useSkyLightlevel = false;
+    private boolean spawnableOnly = false;
+    private boolean hasSky = true;
+    private int minY = 0;
+    private int maxY = 255;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private File configFile;
+
+    private short[] surfaces;
+    private ExecutorService workers;
+
+    public static void main(String[] args) throws Exception {
+        LightLevelOverlayMapTool tool = new LightLevelOverlayMapTool();
+        if (!tool.parseArguments(args)) {
+            System.err.println("usage: LightLevelOverlayMapTool <world directory> <output directory> " +
+                    "[--upto <n>] [--sky] [--spawnable] [--no-sky] [--min-y <n>] [--max-y <n>] " +
+                    "[--threads <n>] [--config <file>]");
+            System.exit(1);
+        }
+        tool.run();
+    }
+
+    private boolean parseArguments(String[] args) {
+        List<String> paths = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--upto"))
+                    showLightlevelUpto = Integer.parseInt(args[++i]);
+                else if (arg.equals("--sky"))
+                    useSkyLightlevel = true;
+                else if (arg.equals("--spawnable"))
+                    spawnableOnly = true;
+                else if (arg.equals("--no-sky"))
+                    hasSky = false;
+                else if (arg.equals("--min-y"))
+                    minY = Integer.parseInt(args[++i]);
+                else if (arg.equals("--max-y"))
+                    maxY = Integer.parseInt(args[++i]);
+                else if (arg.equals("--threads"))
+                    threads = Integer.parseInt(args[++i]);
+                else if (arg.equals("--config"))
+                    configFile = new File(args[++i]);
+                else if (arg.startsWith("--"))
+                    return false;
+                else
+                    paths.add(arg);
+            }
+        }
+        catch (RuntimeException e) {
+            return false;
+        }
+        if (paths.size() != 2) return false;
+        worldDir = new File(paths.get(0));
+        outputDir = new File(paths.get(1));
+        minY = Math.max(0, minY);
+        maxY = Math.min(255, maxY);
+        return true;
+    }
+
+    private void run() throws Exception {
+        File regionDir = new File(worldDir, "region");
+        File[] files = regionDir.listFiles();
+        if (files == null) {
+            System.err.printf("no region directory: %s\n", regionDir);
+            System.exit(1);
+        }
+        Arrays.sort(files);
+        outputDir.mkdirs();
+
+        surfaces = new LightLevelOverlaySurfaceTable(getOverlayBlocks()).getTable();
+        workers = Executors.newFixedThreadPool(Math.max(1, threads));
+
+        PrintWriter csv = new PrintWriter(new BufferedWriter(new FileWriter(new File(outputDir, "chunks.csv"))));
+        try {
+            csv.println("chunkX,chunkZ,overlays");
+            for (File file : files) {
+                Matcher matcher = REGION_NAME.matcher(file.getName());
+                if (!matcher.matches()) continue;
+                int regionX = Integer.parseInt(matcher.group(1));
+                int regionZ = Integer.parseInt(matcher.group(2));
+                scanRegion(file, regionX, regionZ, csv);
+            }
+        }
+        finally {
+            csv.close();
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Overlay blocks of the config file, or the defaults.
+     */
+    private int[] getOverlayBlocks() throws IOException {
+        File file = configFile;
+        if (file == null) {
+            // the config writes its defaults to a new file
+            file = File.createTempFile("lloverlay", ".properties");
+            file.delete();
+            file.deleteOnExit();
+        }
+        return new LightLevelOverlayConfig(file).getOverlayBlocks();
+    }
+
+    private void scanRegion(File file, int regionX, int regionZ, PrintWriter csv) throws Exception {
+        long tStart = System.currentTimeMillis();
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            if (channel.size() < 2 * SECTOR_BYTES) return;
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            int[] pixels = new int[REGION_BLOCKS * REGION_BLOCKS];
+            int[] counts = new int[1024];
+            Arrays.fill(counts, -1);
+
+            // the location table: sector offset and count of every chunk
+            List<ChunkTask> tasks = new ArrayList<ChunkTask>();
+            for (int index = 0; index < 1024; index++) {
+                int location = region.getInt(index * 4);
+                if (location != 0) {
+                    tasks.add(new ChunkTask(region, regionX, regionZ, index, location, pixels, counts));
+                }
+            }
+            for (Future<Void> future : workers.invokeAll(tasks)) {
+                future.get();
+            }
+
+            int chunks = 0;
+            int overlays = 0;
+            for (int index = 0; index < 1024; index++) {
+                if (counts[index] < 0) continue;
+                csv.printf("%d,%d,%d\n", regionX * 32 + (index & 31), regionZ * 32 + (index >> 5), counts[index]);
+                chunks++;
+                overlays += counts[index];
+            }
+
+            BufferedImage image = new BufferedImage(REGION_BLOCKS, REGION_BLOCKS, BufferedImage.TYPE_INT_ARGB);
+            image.setRGB(0, 0, REGION_BLOCKS, REGION_BLOCKS, pixels, 0, REGION_BLOCKS);
+            ImageIO.write(image, "png", new File(outputDir, String.format("r.%d.%d.png", regionX, regionZ)));
+
+            System.out.printf("%s: %d chunks, %d dark surfaces, %dms\n", file.getName(), chunks, overlays,
+                    System.currentTimeMillis() - tStart);
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Decompresses and scans a single chunk of the mapped region on one of
+     * the workers, every chunk writes its own pixels and count. Chunks
+     * that can't be read or scanned are reported and left out.
+     */
+    private class ChunkTask implements Callable<Void> {
+        private ByteBuffer region;
+        private int regionX;
+        private int regionZ;
+        private int index;
+        private int location;
+        private int[] pixels;
+        private int[] counts;
+
+        public ChunkTask(ByteBuffer region, int regionX, int regionZ, int index, int location,
+                int[] pixels, int[] counts) {
+            this.region = region;
+            this.regionX = regionX;
+            this.regionZ = regionZ;
+            this.index = index;
+            this.location = location;
+            this.pixels = pixels;
+            this.counts = counts;
+        }
+
+        public Void call() {
+            // own position and limit, the mapped buffer is shared
+            ByteBuffer buffer = region.duplicate();
+            int offset = (location >>> 8) * SECTOR_BYTES;
+            if (offset + 5 > buffer.limit()) return null;
+            int length = buffer.getInt(offset);
+            int compression = buffer.get(offset + 4);
+            if (length <= 1 || offset + 4 + length > buffer.limit()) return null;
+            buffer.position(offset + 5);
+            buffer.limit(offset + 4 + length);
+
+            try {
+                InputStream in = new ByteBufferInputStream(buffer.slice());
+                in = compression == 1 ? new GZIPInputStream(in) : new InflaterInputStream(in);
+                NBTTagCompound root = CompressedStreamTools.read(new DataInputStream(new BufferedInputStream(in)));
+                counts[index] = scanChunk(root.getCompoundTag("Level"), pixels);
+            }
+            catch (IOException e) {
+                System.err.printf("unable to read chunk %d, %d: %s\n", getChunkX(), getChunkZ(), e);
+            }
+            catch (RuntimeException e) {
+                // malformed or truncated nbt, wrong tag types or array sizes
+                System.err.printf("unable to scan chunk %d, %d: %s\n", getChunkX(), getChunkZ(), e);
+            }
+            return null;
+        }
+
+        private int getChunkX() {
+            return regionX * 32 + (index & 31);
+        }
+
+        private int getChunkZ() {
+            return regionZ * 32 + (index >> 5);
+        }
+    }
+
+    /**
+     * Scans the sections of the chunk with the same scanChunk() as the
+     * generation thread and draws its columns into the map of the region.
+     *
+     * @return number of overlays
+     */
+    private int scanChunk(NBTTagCompound level, int[] pixels) {
+        int chunkX = level.getInteger("xPos");
+        int chunkZ = level.getInteger("zPos");
+
+        byte[][] blocks = new byte[16][];
+        byte[][] add = new byte[16][];
+        byte[][] data = new byte[16][];
+        byte[][] light = new byte[16][];
+        int topSection = -1;
+        NBTTagList sections = level.getTagList("Sections");
+        for (int i = 0; i < sections.tagCount(); i++) {
+            NBTTagCompound section = (NBTTagCompound) sections.tagAt(i);
+            int sectionY = section.getByte("Y") & 255;
+            if (sectionY > 15) continue;
+            blocks[sectionY] = section.getByteArray("Blocks");
+            add[sectionY] = section.hasKey("Add") ? section.getByteArray("Add") : null;
+            data[sectionY] = section.getByteArray("Data");
+            light[sectionY] = section.getByteArray(useSkyLightlevel ? "SkyLight" : "BlockLight");
+            topSection = Math.max(topSection, sectionY);
+        }
+        int[] heightMap = level.getIntArray("HeightMap");
+        if (heightMap.length != 256) {
+            heightMap = new int[256];
+        }
+
+        LightLevelOverlayChunk overlays = new LightLevelOverlayChunk(chunkX, chunkZ);
+        LightLevelOverlayScanner scanner = new LightLevelOverlayScanner(surfaces,
+                showLightlevelUpto, 0, useSkyLightlevel, spawnableOnly, hasSky);
+        scanner.scanChunk(overlays, heightMap, minY, Math.min(topSection * 16 + 15, maxY),
+                blocks, add, data, light, false);
+
+        MapRenderer map = new MapRenderer();
+        overlays.render(map);
+        int origin = (chunkZ & 31) * 16 * REGION_BLOCKS + (chunkX & 31) * 16;
+        for (int column = 0; column < 256; column++) {
+            int darkest = map.levels[column];
+            if (darkest > 15) continue;
+            int shade = darkest * 255 / 15;
+            pixels[origin + (column >> 4) * REGION_BLOCKS + (column & 15)] = 0xffff0000 | shade << 8;
+        }
+        return overlays.getSize();
+    }
+
+    /**
+     * Keeps the darkest light level of every column of a chunk.
+     */
+    private static class MapRenderer implements LightLevelOverlayRenderer {
+        // by z << 4 | x, 16 without overlay
+        public int[] levels = new int[256];
+
+        public MapRenderer() {
+            Arrays.fill(levels, 16);
+        }
+
+        public void addOverlay(int x, int y, int z, double blockHeight, int tex) {
+            int column = (z & 15) << 4 | (x & 15);
+            levels[column] = Math.min(levels[column], tex & 15);
+        }
+
+        public void addMergedOverlay(int x, int y, int z, int sizeX, int sizeZ, double blockHeight, int tex) {
+            for (int dz = 0; dz < sizeZ; dz++) {
+                for (int dx = 0; dx < sizeX; dx++) {
+                    addOverlay(x + dx, y, z + dz, blockHeight, tex);
+                }
+            }
+        }
+
+        public void clear() {
+        }
+
+        public void startChunk(int chunkX, int chunkZ) {
+        }
+
+        public void stopChunk() {
+        }
+
+        public void removeChunk(int chunkX, int chunkZ) {
+        }
+
+        public void startGenerate() {
+        }
+
+        public void stopGenerate() {
+        }
+
+        public int getCacheSize() {
+            return 0;
+        }
+
+        public void render(double x, double y, double z) {
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 255 : -1;
+        }
+
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) return -1;
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+    }
+}